@@ -2,18 +2,40 @@ package se.pp.forsberg.polytope.solver;
 
 import static java.lang.Math.*;
 
+import java.lang.ref.WeakReference;
 import java.util.Map;
+import java.util.WeakHashMap;
 
 // "Exact angles" using symbolic notation
 public abstract class Angle {
   
+  // Canonical instances of structurally equal angles, so that angles taken from polytopes
+  // can be compared and looked up by identity. Weak, angles no polytope uses any more can go.
+  private static final Map<Angle, WeakReference<Angle>> interned = new WeakHashMap<Angle, WeakReference<Angle>>();
 
-
+  // The canonical instance equal to angle. Composite angles should be built from interned angles,
+  // then comparing them to what is already in the table stops at the children's identities.
+  @SuppressWarnings("unchecked")
+  public static <T extends Angle> T intern(T angle) {
+    if (angle == null || angle instanceof Unknown) {
+      return angle;
+    }
+    synchronized (interned) {
+      WeakReference<Angle> reference = interned.get(angle);
+      Angle result = reference == null? null : reference.get();
+      if (result == null) {
+        interned.put(angle, new WeakReference<Angle>(angle));
+        return angle;
+      }
+      // equals() requires the same class
+      return (T) result;
+    }
+  }
 
   public abstract double getAngle();
   
   public static class RationalPi extends Angle {
-    private final int nominator, denominator;
+    final int nominator, denominator;
     public RationalPi(int nominator, int denominator) {
       if (denominator < 0) {
         denominator = -denominator;
@@ -71,10 +93,14 @@ public abstract class Angle {
       RationalPi other = (RationalPi) obj;
       return nominator == other.nominator && denominator == other.denominator;
     }
+    @Override
+    public int hashCode() {
+      return 31 * nominator + denominator;
+    }
   }
   
   public static class RationalAcos extends Angle {
-    private final int multiplier, nominator, denominator;
+    final int multiplier, nominator, denominator;
     public RationalAcos(int multiplier, int nominator, int denominator) {
       this.multiplier = multiplier; 
       if (denominator < 0) {
@@ -118,6 +144,10 @@ public abstract class Angle {
       RationalAcos other = (RationalAcos) obj;
       return multiplier == other.multiplier && nominator == other.nominator && denominator == other.denominator;
     }
+    @Override
+    public int hashCode() {
+      return (31 * multiplier + nominator) * 31 + denominator + 1;
+    }
   }
   
   public static class TrinaryAngle extends Angle {
@@ -127,16 +157,27 @@ public abstract class Angle {
     final Value value;
     final String description;
     final Angle v1, v2, v3;
+    // Children are often shared (the same angle fed back in the next dimension),
+    // evaluating them again on every call would be exponential in the depth
+    private double angle;
+    private volatile boolean evaluated;
+    // In argument order, rotations of the same arguments are different angles
+    private final int hash;
     public TrinaryAngle(Angle v1, Angle v2, Angle v3, Value value, String description) {
       this.value = value;
       this.description = description;
       this.v1 = v1;
       this.v2 = v2;
       this.v3 = v3;
+      hash = ((value.hashCode() * 31 + v1.hashCode()) * 31 + v2.hashCode()) * 31 + v3.hashCode();
     }
     @Override
     public double getAngle() {
-      return value.getValue(v1.getAngle(), v2.getAngle(), v3.getAngle());
+      if (!evaluated) {
+        angle = value.getValue(v1.getAngle(), v2.getAngle(), v3.getAngle());
+        evaluated = true;
+      }
+      return angle;
     }
     @Override
     public String toString() {
@@ -152,15 +193,18 @@ public abstract class Angle {
     }
     @Override
     public boolean equals(Object obj) {
+      if (obj == this) {
+        return true;
+      }
       if (!(obj instanceof TrinaryAngle)) {
         return false;
       }
       TrinaryAngle other = (TrinaryAngle) obj;
-      return v1.equals(other.v1) && v2.equals(other.v2) && v3.equals(other.v3) && value.equals(other.value);
+      return hashCode() == other.hashCode() && v1.equals(other.v1) && v2.equals(other.v2) && v3.equals(other.v3) && value.equals(other.value);
     }
     @Override
     public int hashCode() {
-      return v1.hashCode() ^ v2.hashCode() ^ v3.hashCode() ^ value.hashCode();
+      return hash;
     }
   }
 
@@ -171,6 +215,10 @@ public abstract class Angle {
     final Value value;
     final String description;
     final Angle v1, v2, v3, v4, v5;
+    // See TrinaryAngle
+    private double angle;
+    private volatile boolean evaluated;
+    private final int hash;
     public QuintaryAngle(Angle v1, Angle v2, Angle v3, Angle v4, Angle v5, Value value, String description) {
       this.value = value;
       this.description = description;
@@ -179,10 +227,19 @@ public abstract class Angle {
       this.v3 = v3;;
       this.v4 = v4;;
       this.v5 = v5;
+      int h = value.hashCode();
+      for (Angle v: new Angle[] {v1, v2, v3, v4, v5}) {
+        h = h * 31 + v.hashCode();
+      }
+      hash = h;
     }
     @Override
     public double getAngle() {
-      return value.getValue(v1.getAngle(), v2.getAngle(), v3.getAngle(), v4.getAngle(), v5.getAngle());
+      if (!evaluated) {
+        angle = value.getValue(v1.getAngle(), v2.getAngle(), v3.getAngle(), v4.getAngle(), v5.getAngle());
+        evaluated = true;
+      }
+      return angle;
     }
     @Override
     public String toString() {
@@ -200,15 +257,18 @@ public abstract class Angle {
     }
     @Override
     public boolean equals(Object obj) {
+      if (obj == this) {
+        return true;
+      }
       if (!(obj instanceof QuintaryAngle)) {
         return false;
       }
       QuintaryAngle other = (QuintaryAngle) obj;
-      return v1.equals(other.v1) && v2.equals(other.v2) && v3.equals(other.v3) && v4.equals(other.v4) && v5.equals(other.v5) && value.equals(other.value);
+      return hashCode() == other.hashCode() && v1.equals(other.v1) && v2.equals(other.v2) && v3.equals(other.v3) && v4.equals(other.v4) && v5.equals(other.v5) && value.equals(other.value);
     }
     @Override
     public int hashCode() {
-      return v1.hashCode() ^ v2.hashCode() ^ v3.hashCode() ^ v4.hashCode() ^ v5.hashCode() ^ value.hashCode();
+      return hash;
     }
   }
   public static class Unknown extends Angle {
@@ -0,0 +1,97 @@
+package se.pp.forsberg.polytope.solver;
+
+import static java.lang.Math.PI;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// The sums that angles of catalog polytopes can make, to tell whether a facet chain can still be closed.
+// Around a corner the angles of the facets are the sides of a convex spherical polygon, the link of the corner,
+// so they add up to less than a full turn and the largest of them is less than the sum of the others.
+// Immutable, plus() returns a new table when a polytope brings a new angle.
+final class AngleSums {
+  static final AngleSums EMPTY = new AngleSums(new double[0]);
+  private static final double epsilon = 0.000001;
+
+  // Distinct angles, ascending
+  private final double[] angles;
+  // sums[k] has the distinct sums of k or more angles that stay below a full turn, ascending
+  private final double[][] sums;
+
+  // Sums of k angles are those of k - 1 angles plus one more, kept once each however many multisets make them,
+  // so the table grows with the number of distinct sums and not with the number of multisets
+  private AngleSums(double[] angles) {
+    this.angles = angles;
+    List<double[]> exactly = new ArrayList<double[]>();
+    double[] layer = { 0 };
+    while (layer.length > 0) {
+      exactly.add(layer);
+      double[] next = new double[layer.length * angles.length];
+      int count = 0;
+      for (double sum: layer) {
+        for (int i = 0; i < angles.length && sum + angles[i] <= 2 * PI - epsilon; i++) {
+          next[count++] = sum + angles[i];
+        }
+      }
+      layer = distinct(next, count);
+    }
+    sums = new double[exactly.size()][];
+    double[] atLeast = new double[0];
+    for (int k = exactly.size() - 1; k >= 0; k--) {
+      double[] more = exactly.get(k);
+      double[] both = Arrays.copyOf(atLeast, atLeast.length + more.length);
+      System.arraycopy(more, 0, both, atLeast.length, more.length);
+      atLeast = distinct(both, both.length);
+      sums[k] = atLeast;
+    }
+  }
+
+  // With the angles at the ridges of p, this if it has no new ones
+  AngleSums plus(Polytope p) {
+    double[] newAngles = new double[angles.length + p.ridgeAngles.size()];
+    System.arraycopy(angles, 0, newAngles, 0, angles.length);
+    int count = angles.length;
+    for (Angle angle: p.ridgeAngles.values()) {
+      if (!(angle instanceof Angle.Unknown)) {
+        newAngles[count++] = angle.getAngle();
+      }
+    }
+    newAngles = distinct(newAngles, count);
+    return newAngles.length == angles.length ? this : new AngleSums(newAngles);
+  }
+
+  // Whether more angles, at least as many as more, fit with angles adding up to sum
+  boolean fits(double sum, int more) {
+    return more < sums.length && sum + sums[more][0] <= 2 * PI - epsilon;
+  }
+
+  // Whether more angles, at least as many as more, can close a chain with angles adding up to sum,
+  // the largest of them largest. The ones added must make up for what largest exceeds the others by.
+  // Only the largest angle so far is compared, an added one that is larger makes it harder still.
+  boolean canClose(double sum, double largest, int more) {
+    if (more >= sums.length) {
+      return false;
+    }
+    double[] candidates = sums[more];
+    double low = 2 * largest - sum - epsilon;
+    double high = 2 * PI - epsilon - sum;
+    // First sum above low
+    int i = Arrays.binarySearch(candidates, low);
+    i = i < 0 ? -i - 1 : i + 1;
+    return i < candidates.length && candidates[i] <= high;
+  }
+
+  // The first count values sorted, with those that only differ by rounding taken as one
+  private static double[] distinct(double[] values, int count) {
+    double[] sorted = Arrays.copyOf(values, count);
+    Arrays.sort(sorted);
+    int result = 0;
+    for (int i = 0; i < count; i++) {
+      if (result == 0 || sorted[i] - sorted[result - 1] > 1e-9) {
+        sorted[result++] = sorted[i];
+      }
+    }
+    return Arrays.copyOf(sorted, result);
+  }
+}
@@ -0,0 +1,192 @@
+package se.pp.forsberg.polytope.solver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The symmetries of a closed polytope, automorphisms of its face lattice that also keep the prototype ids
+// of the faces and the angles at their ridges, so that a copy taken through one is the same polytope.
+// An automorphism is determined by where it takes a single flag (see Certificate) and only the identity
+// keeps a flag in place. So of all ways of connecting something to the polytope that differ only by a symmetry,
+// exactly one takes a given flag to the first flag of its orbit, the others can be skipped.
+// Flags are numbered facet by facet, the first flag of an orbit lies in the first facet of the facet orbit.
+public final class Automorphisms {
+  private final int n;
+  private final int order;
+  private final Map<Long, Integer> flagIds = new HashMap<Long, Integer>();
+  private final IncidenceLattice lattice;
+  // First flag in the orbit of each flag, first face in the orbit of each face by dimension
+  private final int[] flagOrbits;
+  private final int[][] faceOrbits;
+  // Face indexes in the lattice by dimension
+  private final List<Map<Polytope, Integer>> indexes = new ArrayList<Map<Polytope, Integer>>();
+
+  private Automorphisms(Polytope p) {
+    lattice = p.getLattice();
+    n = lattice.getDimensions();
+    List<int[]> flags = Certificate.flags(lattice);
+    for (int f = 0; f < flags.size(); f++) {
+      flagIds.put(Certificate.key(lattice, flags.get(f)), f);
+    }
+    for (int d = 0; d <= n; d++) {
+      Map<Polytope, Integer> index = new HashMap<Polytope, Integer>();
+      for (int i = 0; i < lattice.count(d); i++) {
+        index.put(lattice.face(d, i), i);
+      }
+      indexes.add(index);
+    }
+    flagOrbits = new int[flags.size()];
+    for (int f = 0; f < flagOrbits.length; f++) {
+      flagOrbits[f] = f;
+    }
+    faceOrbits = new int[n + 1][];
+    for (int d = 0; d <= n; d++) {
+      faceOrbits[d] = new int[lattice.count(d)];
+      for (int i = 0; i < faceOrbits[d].length; i++) {
+        faceOrbits[d][i] = i;
+      }
+    }
+    int[] adjacent = Certificate.adjacent(lattice, flags, false);
+    if (adjacent == null || flags.isEmpty()) {
+      // Not closed, only the identity is known
+      order = 1;
+      return;
+    }
+    int automorphisms = 0;
+    for (int start = 0; start < flags.size(); start++) {
+      int[] image = image(start, adjacent, flags.size());
+      if (image == null) {
+        continue;
+      }
+      int[][] faceImage = faceImage(flags, image);
+      if (faceImage == null) {
+        continue;
+      }
+      automorphisms++;
+      for (int f = 0; f < flagOrbits.length; f++) {
+        flagOrbits[f] = Math.min(flagOrbits[f], image[f]);
+      }
+      for (int d = 0; d <= n; d++) {
+        for (int i = 0; i < faceOrbits[d].length; i++) {
+          faceOrbits[d][i] = Math.min(faceOrbits[d][i], faceImage[d][i]);
+        }
+      }
+    }
+    order = automorphisms;
+  }
+
+  // Cached by frozen polytopes, see Polytope.getAutomorphisms()
+  static Automorphisms of(Polytope p) {
+    return new Automorphisms(p);
+  }
+
+  // Number of symmetries, 1 if there are none but the identity
+  public int order() {
+    return order;
+  }
+
+  // Whether the face is the first of its orbit. Faces of other polytopes are.
+  public boolean isFirst(Polytope face) {
+    if (face.n > n) {
+      return true;
+    }
+    Integer i = indexes.get(face.n).get(face);
+    return i == null || faceOrbits[face.n][i] == i;
+  }
+
+  // Whether the flag, the faces of dimension 0, 1, .. n-1 in order, is the first of its orbit.
+  // Anything that is not a flag of the polytope is.
+  public boolean isFirst(Polytope[] faces) {
+    if (faces.length != n || flagOrbits.length == 0) {
+      return true;
+    }
+    int[] flag = new int[n];
+    for (int d = 0; d < n; d++) {
+      Integer i = faces[d] == null ? null : indexes.get(d).get(faces[d]);
+      if (i == null) {
+        return true;
+      }
+      flag[d] = i;
+    }
+    Integer f = flagIds.get(Certificate.key(lattice, flag));
+    return f == null || flagOrbits[f] == f;
+  }
+
+  // The flag permutation taking flag 0 to start and commuting with adjacency, null if there is none
+  private int[] image(int start, int[] adjacent, int flagCount) {
+    int[] image = new int[flagCount];
+    Arrays.fill(image, -1);
+    int[] queue = new int[flagCount];
+    int head = 0, tail = 0;
+    image[0] = start;
+    queue[tail++] = 0;
+    while (head < tail) {
+      int f = queue[head++];
+      for (int i = 0; i < n; i++) {
+        int g = adjacent[f * n + i];
+        int expected = adjacent[image[f] * n + i];
+        if (image[g] < 0) {
+          image[g] = expected;
+          queue[tail++] = g;
+        } else if (image[g] != expected) {
+          return null;
+        }
+      }
+    }
+    return tail == flagCount ? image : null;
+  }
+
+  // The face permutation of a flag permutation, null if it does not keep ids and angles
+  private int[][] faceImage(List<int[]> flags, int[] image) {
+    int[][] result = new int[n + 1][];
+    for (int d = 0; d < n; d++) {
+      result[d] = new int[lattice.count(d)];
+      Arrays.fill(result[d], -1);
+    }
+    result[n] = new int[] { 0 };
+    for (int f = 0; f < flags.size(); f++) {
+      int[] from = flags.get(f);
+      int[] to = flags.get(image[f]);
+      for (int d = 0; d < n; d++) {
+        if (result[d][from[d]] < 0) {
+          result[d][from[d]] = to[d];
+        } else if (result[d][from[d]] != to[d]) {
+          return null;
+        }
+      }
+    }
+    for (int d = 0; d <= n; d++) {
+      for (int i = 0; i < lattice.count(d); i++) {
+        int j = result[d][i];
+        if (lattice.id(d, i) != lattice.id(d, j) || !sameAngles(d, i, j, result)) {
+          return null;
+        }
+      }
+    }
+    return result;
+  }
+
+  private boolean sameAngles(int d, int i, int j, int[][] faceImage) {
+    int[] ridges = lattice.angleRidges(d, i);
+    int[] imageRidges = lattice.angleRidges(d, j);
+    if (ridges.length != imageRidges.length) {
+      return false;
+    }
+    Angle[] angles = lattice.angles(d, i);
+    Angle[] imageAngles = lattice.angles(d, j);
+    for (int r = 0; r < ridges.length; r++) {
+      int k = Arrays.binarySearch(imageRidges, faceImage[d - 2][ridges[r]]);
+      if (k < 0 || !angles[r].equals(imageAngles[k])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return "Automorphism group of order " + order;
+  }
+}
@@ -0,0 +1,289 @@
+package se.pp.forsberg.polytope.solver;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Binary form of a list of polytopes and possibly a starting point.
+// Names and angle expressions are stored once, in tables at the start, and polytopes as incidence lattices
+// referring to them by index. Opening a catalog reads the tables and the index only, each polytope is decoded
+// when asked for, without any parsing. The buffer is on the heap, see Journal.read().
+// Layout, big endian:
+//   int magic, int version
+//   int string count, strings as int length and UTF-8 bytes
+//   int angle count, angles as a byte kind followed by numbers, or indexes of the description and of earlier angles
+//   int polytope count, int id and int offset per polytope, int offset of the starting point or -1
+//   lattices: int n, per dimension int face count, per face int id, int name,
+//     int facet count and facets, int angle count and int ridge, int angle per angle
+// Unnamed faces have name -1, unknown angles angle -1.
+final class Catalog {
+  private static final int MAGIC = 0x50434154;
+  private static final int VERSION = 1;
+  private static final byte RATIONAL_PI = 1;
+  private static final byte RATIONAL_ACOS = 2;
+  private static final byte TRINARY = 3;
+  private static final byte QUINTARY = 4;
+
+  private final ByteBuffer buffer;
+  private final String[] strings;
+  private final Angle[] angles;
+  // Polytope ids in increasing order and where they are
+  private final int[] ids;
+  private final int[] offsets;
+  private final int startingPoint;
+
+  private Catalog(ByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+    ByteBuffer in = buffer.duplicate();
+    if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+      throw new IOException("Not a polytope catalog");
+    }
+    strings = new String[in.getInt()];
+    for (int i = 0; i < strings.length; i++) {
+      byte[] bytes = new byte[in.getInt()];
+      in.get(bytes);
+      strings[i] = new String(bytes, UTF_8);
+    }
+    angles = new Angle[in.getInt()];
+    for (int i = 0; i < angles.length; i++) {
+      angles[i] = readAngle(in);
+    }
+    ids = new int[in.getInt()];
+    offsets = new int[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = in.getInt();
+      offsets[i] = in.getInt();
+    }
+    startingPoint = in.getInt();
+  }
+
+  static Catalog of(ByteBuffer buffer) throws IOException {
+    return new Catalog(buffer);
+  }
+
+  private Angle readAngle(ByteBuffer in) throws IOException {
+    byte kind = in.get();
+    switch (kind) {
+    case RATIONAL_PI:
+      return Angle.intern(new Angle.RationalPi(in.getInt(), in.getInt()));
+    case RATIONAL_ACOS:
+      return Angle.intern(new Angle.RationalAcos(in.getInt(), in.getInt(), in.getInt()));
+    case TRINARY: {
+      String description = strings[in.getInt()];
+      Angle.TrinaryAngle.Value value = Fold3Solution.value(description);
+      if (value == null) {
+        throw new IOException("Unknown angle relation " + description);
+      }
+      return Angle.intern(new Angle.TrinaryAngle(angles[in.getInt()], angles[in.getInt()], angles[in.getInt()], value, description));
+    }
+    case QUINTARY: {
+      String description = strings[in.getInt()];
+      Angle.QuintaryAngle.Value value = Fold4Solution.value(description);
+      if (value == null) {
+        throw new IOException("Unknown angle relation " + description);
+      }
+      return Angle.intern(new Angle.QuintaryAngle(angles[in.getInt()], angles[in.getInt()], angles[in.getInt()],
+          angles[in.getInt()], angles[in.getInt()], value, description));
+    }
+    default:
+      throw new IOException("Unknown angle kind " + kind);
+    }
+  }
+
+  int size() {
+    return ids.length;
+  }
+  // Ids of the polytopes, in increasing order
+  int id(int i) {
+    return ids[i];
+  }
+  // Decodes the polytope with the given id, null if it is not in the catalog
+  Polytope get(int id) {
+    int i = Arrays.binarySearch(ids, id);
+    return i < 0 ? null : read(offsets[i]).toPolytope();
+  }
+  // null if there is none
+  WorkInProgress getStartingPoint() {
+    return startingPoint < 0 ? null : read(startingPoint).toWorkInProgress();
+  }
+
+  private IncidenceLattice read(int offset) {
+    ByteBuffer in = buffer.duplicate();
+    in.position(offset);
+    int n = in.getInt();
+    int[][][] facets = new int[n + 1][][];
+    int[][] faceIds = new int[n + 1][];
+    String[][] names = new String[n + 1][];
+    int[][][] angleRidges = new int[n + 1][][];
+    Angle[][][] faceAngles = new Angle[n + 1][][];
+    for (int d = 0; d <= n; d++) {
+      int count = in.getInt();
+      facets[d] = new int[count][];
+      faceIds[d] = new int[count];
+      names[d] = new String[count];
+      angleRidges[d] = new int[count][];
+      faceAngles[d] = new Angle[count][];
+      for (int i = 0; i < count; i++) {
+        faceIds[d][i] = in.getInt();
+        int name = in.getInt();
+        names[d][i] = name < 0 ? null : strings[name];
+        facets[d][i] = new int[in.getInt()];
+        for (int j = 0; j < facets[d][i].length; j++) {
+          facets[d][i][j] = in.getInt();
+        }
+        angleRidges[d][i] = new int[in.getInt()];
+        faceAngles[d][i] = new Angle[angleRidges[d][i].length];
+        for (int j = 0; j < angleRidges[d][i].length; j++) {
+          angleRidges[d][i][j] = in.getInt();
+          int angle = in.getInt();
+          faceAngles[d][i][j] = angle < 0 ? new Angle.Unknown() : angles[angle];
+        }
+      }
+    }
+    return IncidenceLattice.of(facets, faceIds, names, angleRidges, faceAngles);
+  }
+
+  // Catalog of the given polytopes, in the order of their ids, and the starting point, which may be null
+  static byte[] encode(List<Polytope> polytopes, WorkInProgress startingPoint) {
+    return new Encoder().encode(polytopes, startingPoint);
+  }
+
+  private static class Encoder {
+    private final List<String> strings = new ArrayList<String>();
+    private final Map<String, Integer> stringIndexes = new HashMap<String, Integer>();
+    private final ByteArrayOutputStream angleBytes = new ByteArrayOutputStream();
+    private final DataOutputStream angles = new DataOutputStream(angleBytes);
+    private final Map<Angle, Integer> angleIndexes = new HashMap<Angle, Integer>();
+    private final ByteArrayOutputStream latticeBytes = new ByteArrayOutputStream();
+    private final DataOutputStream lattices = new DataOutputStream(latticeBytes);
+
+    byte[] encode(List<Polytope> polytopes, WorkInProgress startingPoint) {
+      try {
+        // Lattices first, they fill the tables. Their offsets are relative to the first lattice until the header is done.
+        int[] offsets = new int[polytopes.size()];
+        for (int i = 0; i < offsets.length; i++) {
+          offsets[i] = lattices.size();
+          write(polytopes.get(i).getLattice());
+        }
+        int startingPointOffset = -1;
+        if (startingPoint != null) {
+          startingPointOffset = lattices.size();
+          write(IncidenceLattice.of(startingPoint));
+        }
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(result);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(strings.size());
+        for (String string: strings) {
+          byte[] bytes = string.getBytes(UTF_8);
+          out.writeInt(bytes.length);
+          out.write(bytes);
+        }
+        out.writeInt(angleIndexes.size());
+        angleBytes.writeTo(out);
+        int headerSize = out.size() + 4 + 8 * offsets.length + 4;
+        out.writeInt(offsets.length);
+        for (int i = 0; i < offsets.length; i++) {
+          out.writeInt(polytopes.get(i).id);
+          out.writeInt(headerSize + offsets[i]);
+        }
+        out.writeInt(startingPointOffset < 0 ? -1 : headerSize + startingPointOffset);
+        latticeBytes.writeTo(out);
+        return result.toByteArray();
+      } catch (IOException e) {
+        // Not from memory
+        throw new IllegalStateException(e);
+      }
+    }
+
+    private void write(IncidenceLattice lattice) throws IOException {
+      int n = lattice.getDimensions();
+      lattices.writeInt(n);
+      for (int d = 0; d <= n; d++) {
+        lattices.writeInt(lattice.count(d));
+        for (int i = 0; i < lattice.count(d); i++) {
+          lattices.writeInt(lattice.id(d, i));
+          lattices.writeInt(string(lattice.name(d, i)));
+          int[] facets = lattice.facets(d, i);
+          lattices.writeInt(facets.length);
+          for (int facet: facets) {
+            lattices.writeInt(facet);
+          }
+          int[] ridges = lattice.angleRidges(d, i);
+          Angle[] faceAngles = lattice.angles(d, i);
+          lattices.writeInt(ridges.length);
+          for (int r = 0; r < ridges.length; r++) {
+            lattices.writeInt(ridges[r]);
+            lattices.writeInt(angle(faceAngles[r]));
+          }
+        }
+      }
+    }
+
+    private int string(String string) {
+      if (string == null) {
+        return -1;
+      }
+      Integer index = stringIndexes.get(string);
+      if (index == null) {
+        index = strings.size();
+        strings.add(string);
+        stringIndexes.put(string, index);
+      }
+      return index;
+    }
+
+    // Arguments of an expression are written before it
+    private int angle(Angle angle) throws IOException {
+      if (angle instanceof Angle.Unknown) {
+        return -1;
+      }
+      Integer index = angleIndexes.get(angle);
+      if (index != null) {
+        return index;
+      }
+      if (angle instanceof Angle.RationalPi) {
+        Angle.RationalPi rational = (Angle.RationalPi) angle;
+        angles.writeByte(RATIONAL_PI);
+        angles.writeInt(rational.nominator);
+        angles.writeInt(rational.denominator);
+      } else if (angle instanceof Angle.RationalAcos) {
+        Angle.RationalAcos rational = (Angle.RationalAcos) angle;
+        angles.writeByte(RATIONAL_ACOS);
+        angles.writeInt(rational.multiplier);
+        angles.writeInt(rational.nominator);
+        angles.writeInt(rational.denominator);
+      } else if (angle instanceof Angle.TrinaryAngle) {
+        Angle.TrinaryAngle trinary = (Angle.TrinaryAngle) angle;
+        int[] arguments = { angle(trinary.v1), angle(trinary.v2), angle(trinary.v3) };
+        angles.writeByte(TRINARY);
+        angles.writeInt(string(trinary.description));
+        for (int argument: arguments) {
+          angles.writeInt(argument);
+        }
+      } else if (angle instanceof Angle.QuintaryAngle) {
+        Angle.QuintaryAngle quintary = (Angle.QuintaryAngle) angle;
+        int[] arguments = { angle(quintary.v1), angle(quintary.v2), angle(quintary.v3), angle(quintary.v4), angle(quintary.v5) };
+        angles.writeByte(QUINTARY);
+        angles.writeInt(string(quintary.description));
+        for (int argument: arguments) {
+          angles.writeInt(argument);
+        }
+      } else {
+        throw new IllegalArgumentException("Can't store angle " + angle);
+      }
+      index = angleIndexes.size();
+      angleIndexes.put(angle, index);
+      return index;
+    }
+  }
+}
@@ -0,0 +1,232 @@
+package se.pp.forsberg.polytope.solver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+// Canonical form of the face lattice of a closed polytope.
+// Two polytopes get equal certificates if and only if they are combinatorially equivalent,
+// so the certificate can be used as a hash key for the catalog.
+//
+// A flag is a chain of faces vertex < edge < ... < facet. In a closed polytope every flag has exactly one
+// i-adjacent flag, that is a flag differing only in the i-face (the "diamond" property).
+// Numbering the flags breadth first from a start flag, always following adjacency 0, 1, .. n-1 in that order,
+// gives a code that only depends on the start flag, not on how the faces happen to be stored.
+// The smallest such code over all start flags is the certificate.
+// A partially built polytope gets a certificate as well (ofPartial()), where facets may be missing at some ridges.
+public final class Certificate {
+  private final int n;
+  private final int[] code;
+  private final int hash;
+
+  private Certificate(int n, int[] code) {
+    this.n = n;
+    this.code = code;
+    this.hash = 31 * n + Arrays.hashCode(code);
+  }
+
+  // Returns null if p is not a closed polytope (some flag lacks a unique neighbor)
+  public static Certificate of(Polytope p) {
+    return of(p.getLattice());
+  }
+  public static Certificate of(IncidenceLattice lattice) {
+    int n = lattice.getDimensions();
+    List<int[]> flags = flags(lattice);
+    int[] adjacent = adjacent(lattice, flags, false);
+    if (adjacent == null) {
+      return null;
+    }
+    int[] best = null;
+    for (int start = 0; start < flags.size(); start++) {
+      int[] code = code(start, adjacent, null, flags.size(), n, best);
+      if (code != null) {
+        best = code;
+      }
+    }
+    return new Certificate(n, best == null ? new int[0] : best);
+  }
+
+  // Certificate of a partially built polytope of at least three dimensions, including the prototype ids
+  // of its facets and which of its corners are finished, so that two searches below states with equal
+  // certificates find the same polytopes. Ridges with a single facet have no (n-1)-adjacent flag.
+  // Returns null if the facets are not connected.
+  static Certificate ofPartial(WorkInProgress p) {
+    IncidenceLattice lattice = IncidenceLattice.of(p);
+    int n = lattice.getDimensions();
+    List<int[]> flags = flags(lattice);
+    int[] adjacent = adjacent(lattice, flags, true);
+    if (adjacent == null) {
+      return null;
+    }
+    Set<Polytope> finishedCorners = p.finishedCorners.keySet();
+    int[] labels = new int[flags.size()];
+    for (int f = 0; f < flags.size(); f++) {
+      int[] flag = flags.get(f);
+      boolean finished = finishedCorners.contains(lattice.face(n - 3, flag[n - 3]));
+      labels[f] = 2 * lattice.id(n - 1, flag[n - 1]) + (finished ? 1 : 0);
+    }
+    int[] best = null;
+    for (int start = 0; start < flags.size(); start++) {
+      int[] code = code(start, adjacent, labels, flags.size(), n, best);
+      if (code != null) {
+        best = code;
+      }
+    }
+    return best == null ? null : new Certificate(n, best);
+  }
+
+  // Fixed size digest, for storing
+  UUID digest() {
+    ByteBuffer bytes = ByteBuffer.allocate(4 * (code.length + 1));
+    bytes.putInt(n);
+    for (int c: code) {
+      bytes.putInt(c);
+    }
+    return UUID.nameUUIDFromBytes(bytes.array());
+  }
+
+  static List<int[]> flags(IncidenceLattice lattice) {
+    int n = lattice.getDimensions();
+    List<int[]> flags = new ArrayList<int[]>();
+    if (n > 0) {
+      for (int facet = 0; facet < lattice.count(n - 1); facet++) {
+        int[] flag = new int[n];
+        flag[n - 1] = facet;
+        collectFlags(lattice, n - 1, flag, flags);
+      }
+    }
+    return flags;
+  }
+
+  // adjacent[f*n + i] is the flag i-adjacent to flag f, null if some flag doesn't have one.
+  // If partial, flags at ridges with a single facet are given -1 as (n-1)-adjacent flag instead.
+  static int[] adjacent(IncidenceLattice lattice, List<int[]> flags, boolean partial) {
+    int n = lattice.getDimensions();
+    Map<Long, Integer> flagIds = new HashMap<Long, Integer>();
+    for (int f = 0; f < flags.size(); f++) {
+      flagIds.put(key(lattice, flags.get(f)), f);
+    }
+    int[] adjacent = new int[flags.size() * n];
+    for (int f = 0; f < flags.size(); f++) {
+      int[] flag = flags.get(f);
+      for (int i = 0; i < n; i++) {
+        int other = adjacentFace(lattice, flag, i);
+        if (other < 0 && partial && i == n - 1) {
+          adjacent[f * n + i] = -1;
+          continue;
+        }
+        if (other < 0) {
+          return null;
+        }
+        int[] neighbor = flag.clone();
+        neighbor[i] = other;
+        Integer id = flagIds.get(key(lattice, neighbor));
+        if (id == null) {
+          return null;
+        }
+        adjacent[f * n + i] = id;
+      }
+    }
+    return adjacent;
+  }
+
+  // Flags are built top down, flag[d] is the index of the d-face
+  private static void collectFlags(IncidenceLattice lattice, int d, int[] flag, List<int[]> flags) {
+    if (d == 0) {
+      flags.add(flag.clone());
+      return;
+    }
+    for (int facet: lattice.facets(d, flag[d])) {
+      flag[d - 1] = facet;
+      collectFlags(lattice, d - 1, flag, flags);
+    }
+  }
+
+  // Flag as a number, the face indexes as digits
+  static long key(IncidenceLattice lattice, int[] flag) {
+    long result = 0;
+    for (int d = flag.length - 1; d >= 0; d--) {
+      result = result * lattice.count(d) + flag[d];
+    }
+    return result;
+  }
+
+  // The only other i-face between flag[i-1] and flag[i+1], or -1 if there isn't exactly one
+  private static int adjacentFace(IncidenceLattice lattice, int[] flag, int i) {
+    int n = flag.length;
+    int[] candidates = i < n - 1 ? lattice.facets(i + 1, flag[i + 1]) : lattice.facets(n, 0);
+    int result = -1;
+    for (int candidate: candidates) {
+      if (candidate != flag[i] && (i == 0 || lattice.contains(i, candidate, flag[i - 1]))) {
+        if (result >= 0) {
+          return -1;
+        }
+        result = candidate;
+      }
+    }
+    return result;
+  }
+
+  // Breadth first code from start flag, the label of each flag (if any) followed by the numbers of its neighbors.
+  // Returns null as soon as the code is known to be larger than best.
+  private static int[] code(int start, int[] adjacent, int[] labels, int flagCount, int n, int[] best) {
+    int[] number = new int[flagCount];
+    Arrays.fill(number, -1);
+    int[] queue = new int[flagCount];
+    int width = labels == null ? n : n + 1;
+    int[] code = new int[flagCount * width];
+    int head = 0, tail = 0, next = 0;
+    number[start] = next++;
+    queue[tail++] = start;
+    boolean smaller = best == null;
+    while (head < tail) {
+      int f = queue[head];
+      for (int i = 0; i < width; i++) {
+        int k = head * width + i;
+        if (labels != null && i == n) {
+          code[k] = labels[f];
+        } else {
+          int g = adjacent[f * n + i];
+          if (g >= 0 && number[g] < 0) {
+            number[g] = next++;
+            queue[tail++] = g;
+          }
+          code[k] = g < 0 ? -1 : number[g];
+        }
+        if (!smaller) {
+          if (code[k] > best[k]) {
+            return null;
+          }
+          smaller = code[k] < best[k];
+        }
+      }
+      head++;
+    }
+    // Equal to best is no improvement
+    return smaller && head == flagCount ? code : null;
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof Certificate)) {
+      return false;
+    }
+    Certificate other = (Certificate) obj;
+    return n == other.n && hash == other.hash && Arrays.equals(code, other.code);
+  }
+
+  @Override
+  public String toString() {
+    return n + "-certificate " + Integer.toHexString(hash);
+  }
+}
@@ -0,0 +1,91 @@
+package se.pp.forsberg.polytope.solver;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+// The parts of the search below a starting point that have been searched completely.
+// Search states are identified by digests of their certificates (Certificate.ofPartial()) rather than by
+// the order in which they are reached, which depends on identity hashes and changes from run to run.
+// For every state being searched the states below it that are done are kept, once it is done itself
+// they are forgotten and it is kept as done below its parent.
+// A search resumed from a checkpoint skips the states that are done, in whatever order it meets them.
+class Checkpoint {
+  private static final int MAGIC = 0x5043484b;
+
+  // The starting point
+  private final UUID root;
+  private final Map<UUID, Set<UUID>> done = new HashMap<UUID, Set<UUID>>();
+
+  Checkpoint(UUID root) {
+    this.root = root;
+  }
+
+  UUID getRoot() {
+    return root;
+  }
+
+  synchronized boolean isDone(UUID parent, UUID state) {
+    Set<UUID> states = done.get(parent);
+    return states != null && states.contains(state);
+  }
+
+  synchronized void done(UUID parent, UUID state) {
+    done.remove(state);
+    Set<UUID> states = done.get(parent);
+    if (states == null) {
+      states = new HashSet<UUID>();
+      done.put(parent, states);
+    }
+    states.add(state);
+  }
+
+  static boolean isCheckpoint(ByteBuffer record) {
+    return record.remaining() >= 4 && record.getInt(record.position()) == MAGIC;
+  }
+
+  // int magic, root, int count of states being searched, per state the state, int count and the states done below it
+  synchronized byte[] encode() {
+    int size = 4 + 16 + 4;
+    for (Set<UUID> states: done.values()) {
+      size += 16 + 4 + 16 * states.size();
+    }
+    ByteBuffer out = ByteBuffer.allocate(size);
+    out.putInt(MAGIC);
+    put(out, root);
+    out.putInt(done.size());
+    for (Map.Entry<UUID, Set<UUID>> entry: done.entrySet()) {
+      put(out, entry.getKey());
+      out.putInt(entry.getValue().size());
+      for (UUID state: entry.getValue()) {
+        put(out, state);
+      }
+    }
+    return out.array();
+  }
+
+  static Checkpoint of(ByteBuffer record) {
+    ByteBuffer in = record.duplicate();
+    in.getInt();
+    Checkpoint result = new Checkpoint(get(in));
+    for (int i = in.getInt(); i > 0; i--) {
+      Set<UUID> states = new HashSet<UUID>();
+      result.done.put(get(in), states);
+      for (int j = in.getInt(); j > 0; j--) {
+        states.add(get(in));
+      }
+    }
+    return result;
+  }
+
+  private static void put(ByteBuffer out, UUID uuid) {
+    out.putLong(uuid.getMostSignificantBits());
+    out.putLong(uuid.getLeastSignificantBits());
+  }
+  private static UUID get(ByteBuffer in) {
+    return new UUID(in.getLong(), in.getLong());
+  }
+}
@@ -0,0 +1,166 @@
+package se.pp.forsberg.polytope.solver;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+// Cursor over the multisets of k elements out of 0..size-1, as nondecreasing index arrays in lexicographic order.
+// The combinations are numbered in that order. A cursor covers a range of numbers, it can start at any
+// combination (startAt()), be restricted to a part of the range (part()) or split in halves (trySplit()),
+// so the combinations can be shared evenly between threads or processes and resumed where they were left.
+// Combinations whose last element is below from are skipped. If elements are only added at the end,
+// those are the combinations that have something new in them.
+class Combinations implements Spliterator<int[]> {
+  private final int size;
+  private final int k;
+  private final int from;
+  // The next combination and its number, null when there are no more
+  private int[] next;
+  private long rank;
+  // Number of the first combination after the range
+  private long end;
+
+  Combinations(int size, int k, int from) {
+    this(size, k, from, 0, count(size, k));
+  }
+
+  private Combinations(int size, int k, int from, long rank, long end) {
+    this.size = size;
+    this.k = k;
+    this.from = from;
+    this.end = end;
+    seek(rank);
+  }
+
+  // Number of multisets of k elements out of size, (size + k - 1 over k)
+  static long count(int size, int k) {
+    if (k == 0) {
+      return 1;
+    }
+    if (size <= 0) {
+      return 0;
+    }
+    long result = 1;
+    for (int i = 1; i <= k; i++) {
+      result = result * (size - 1 + i) / i;
+    }
+    return result;
+  }
+
+  // Continue at the first combination not before c, which need not be a combination itself
+  // as long as it is nondecreasing. Elements may be size, which is past any combination starting the same.
+  Combinations startAt(int[] c) {
+    long r = rank(c);
+    if (r > rank) {
+      seek(r);
+    }
+    return this;
+  }
+
+  // Restrict to the i:th of m equally large parts of all combinations
+  Combinations part(int i, int m) {
+    long count = count(size, k);
+    end = Math.min(end, count * (i + 1) / m);
+    seek(Math.max(rank, count * i / m));
+    return this;
+  }
+
+  @Override
+  public boolean tryAdvance(Consumer<? super int[]> action) {
+    if (next == null) {
+      return false;
+    }
+    int[] result = next.clone();
+    advance();
+    action.accept(result);
+    return true;
+  }
+
+  @Override
+  public Spliterator<int[]> trySplit() {
+    if (next == null) {
+      return null;
+    }
+    long middle = rank + (end - rank) / 2;
+    if (middle <= rank) {
+      return null;
+    }
+    Combinations prefix = new Combinations(size, k, from, rank, middle);
+    seek(middle);
+    return prefix;
+  }
+
+  @Override
+  public long estimateSize() {
+    return next == null ? 0 : end - rank;
+  }
+
+  @Override
+  public int characteristics() {
+    return ORDERED | NONNULL;
+  }
+
+  private void seek(long r) {
+    rank = r;
+    next = r < end ? unrank(r) : null;
+    skipOld();
+  }
+
+  // The following combination has the next number
+  private void advance() {
+    int i = k - 1;
+    while (i >= 0 && next[i] == size - 1) {
+      i--;
+    }
+    rank++;
+    if (i < 0 || rank >= end) {
+      next = null;
+      return;
+    }
+    next[i]++;
+    for (int j = i + 1; j < k; j++) {
+      next[j] = next[i];
+    }
+    skipOld();
+  }
+
+  // Jump ahead to the first combination ending with from or later
+  private void skipOld() {
+    if (next == null || next[k - 1] >= from) {
+      return;
+    }
+    if (from >= size) {
+      next = null;
+      return;
+    }
+    next[k - 1] = from;
+    rank = rank(next);
+    if (rank >= end) {
+      next = null;
+    }
+  }
+
+  private long rank(int[] c) {
+    long result = 0;
+    int low = 0;
+    for (int i = 0; i < k; i++) {
+      for (int v = low; v < c[i]; v++) {
+        result += count(size - v, k - i - 1);
+      }
+      low = c[i];
+    }
+    return result;
+  }
+
+  private int[] unrank(long r) {
+    int[] result = new int[k];
+    int v = 0;
+    for (int i = 0; i < k; i++) {
+      while (r >= count(size - v, k - i - 1)) {
+        r -= count(size - v, k - i - 1);
+        v++;
+      }
+      result[i] = v;
+    }
+    return result;
+  }
+}
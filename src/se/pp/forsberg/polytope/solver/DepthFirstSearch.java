@@ -0,0 +1,104 @@
+package se.pp.forsberg.polytope.solver;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// Depth first search over alternatives that modify shared state recorded in a Trail.
+// The stack of frames is explicit, so the Java stack stays flat however deep the search goes,
+// and nothing below a frame is generated before the consumer asks for the next result.
+// Before a frame is asked for its next alternative everything done for its previous one is undone,
+// so a result is only valid until the next one is requested.
+class DepthFirstSearch<T> extends Spliterators.AbstractSpliterator<T> {
+
+  abstract static class Frame<T> {
+    private Trail trail;
+    private int mark;
+
+    // The next alternative, a frame to search below this one (or a result), null if there are no more.
+    // May modify the state, it is reverted before the next call.
+    protected abstract Frame<T> next();
+
+    // Revert anything done since the frame was entered
+    protected void undo() {
+      trail.undo(mark);
+    }
+  }
+
+  private static final class Result<T> extends Frame<T> {
+    private final T value;
+
+    Result(T value) {
+      this.value = value;
+    }
+
+    @Override
+    protected Frame<T> next() {
+      return null;
+    }
+  }
+
+  static <T> Frame<T> result(T value) {
+    return new Result<T>(value);
+  }
+
+  // A frame with a single alternative
+  static <T> Frame<T> once(Supplier<Frame<T>> alternative) {
+    return new Frame<T>() {
+      private boolean done;
+
+      @Override
+      protected Frame<T> next() {
+        if (done) {
+          return null;
+        }
+        done = true;
+        return alternative.get();
+      }
+    };
+  }
+
+  // Results of searching below root. Closing the stream reverts the state even if it was not consumed to the end.
+  static <T> Stream<T> stream(Trail trail, Frame<T> root) {
+    int mark = trail.mark();
+    return StreamSupport.stream(new DepthFirstSearch<T>(trail, root), false).onClose(() -> trail.undo(mark));
+  }
+
+  private final Trail trail;
+  private final Deque<Frame<T>> stack = new ArrayDeque<Frame<T>>();
+
+  private DepthFirstSearch(Trail trail, Frame<T> root) {
+    super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+    this.trail = trail;
+    push(root);
+  }
+
+  private void push(Frame<T> frame) {
+    frame.trail = trail;
+    frame.mark = trail.mark();
+    stack.push(frame);
+  }
+
+  @Override
+  public boolean tryAdvance(Consumer<? super T> action) {
+    while (!stack.isEmpty()) {
+      Frame<T> frame = stack.peek();
+      frame.undo();
+      Frame<T> next = frame.next();
+      if (next == null) {
+        stack.pop();
+      } else if (next instanceof Result) {
+        action.accept(((Result<T>) next).value);
+        return true;
+      } else {
+        push(next);
+      }
+    }
+    return false;
+  }
+}
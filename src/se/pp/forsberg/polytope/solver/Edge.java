@@ -38,7 +38,13 @@ public class Edge extends Polytope {
       return (Edge) replacementMap.get(this);
     }
     Iterator<Polytope> it = facets.iterator();
-    Edge e = new Edge((Vertex) it.next().copy(replacementMap), (Vertex) it.next().copy(replacementMap), length);
+    Vertex v1 = (Vertex) it.next().copy(replacementMap);
+    Vertex v2 = (Vertex) it.next().copy(replacementMap);
+    Edge e = new Edge(v1, v2, length);
+    if (facets.contains(v1) && facets.contains(v2)) {
+      // Shared vertexes
+      e.facets = facets;
+    }
     replacementMap.put(this, e);
     copyCommon(e);
     return e;
@@ -80,7 +86,7 @@ public class Edge extends Polytope {
     return result;
   }
   public Vertex getOtherVertex(Vertex v) {
-    return (Vertex) getComponent(p -> p.n == 0 && p != v);
+    return (Vertex) getComponent(0, p -> p != v);
   }
   
   @Override
@@ -90,8 +96,8 @@ public class Edge extends Polytope {
     Vertex v2 = (Vertex) it.next();
     if (equivalences.p1p2.containsKey(v1)) {
       Vertex othersVertex = (Vertex) equivalences.p1p2.get(v1);
-      Edge otherEdge = (Edge) other.getComponent(
-          e -> !equivalences.p2p1.containsKey(e) && e.facets.contains(othersVertex));
+      Edge otherEdge = (Edge) other.facesContaining(1, othersVertex).stream()
+          .filter(e -> !equivalences.p2p1.containsKey(e)).findAny().orElse(null);
       if (otherEdge == null) {
         // Slightly suspect, I don't fully understand when this happens
         return false;
@@ -108,8 +114,8 @@ public class Edge extends Polytope {
       }
     } else if (equivalences.p1p2.containsKey(v2)) {
       Vertex othersVertex = (Vertex) equivalences.p1p2.get(v2);
-      Edge otherEdge = (Edge) other.getComponent(
-          e -> !equivalences.p2p1.containsKey(e) && e.facets.contains(othersVertex));
+      Edge otherEdge = (Edge) other.facesContaining(1, othersVertex).stream()
+          .filter(e -> !equivalences.p2p1.containsKey(e)).findAny().orElse(null);
       Iterator<Polytope> it2 = otherEdge.facets.iterator();
       Vertex v12 = (Vertex) it2.next();
       Vertex v22 = (Vertex) it2.next();
@@ -132,8 +138,7 @@ public class Edge extends Polytope {
     if (!facets.contains(v1)) {
       throw new IllegalArgumentException("No such vertex");
     }
-    facets.remove(v1);
-    facets.add(v2);
+    facets = facets.minus(v1).plus(v2);
   }
   
 }
@@ -0,0 +1,103 @@
+package se.pp.forsberg.polytope.solver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+// The faces of a polytope by dimension, each once, and for every face the faces one dimension up that contain it.
+// Facet collections are persistent, so the index is current as long as every face in it still has the facets
+// reference it had when it was indexed (isCurrent()), whether the polytope was changed through add(), equate()
+// or the trail undoing either. See RidgeIndex.
+// Never modified once built, the lists handed out are read only.
+final class FaceIndex {
+  private final List<List<Polytope>> byDimension = new ArrayList<List<Polytope>>();
+  private final Map<Polytope, List<Polytope>> cofacets = new HashMap<Polytope, List<Polytope>>();
+  // The faces above the vertexes and their facets as they were when indexed
+  private final List<Polytope> indexed = new ArrayList<Polytope>();
+  private final List<PersistentSet<Polytope>> indexedFacets = new ArrayList<PersistentSet<Polytope>>();
+
+  FaceIndex(Polytope p) {
+    List<List<Polytope>> levels = new ArrayList<List<Polytope>>();
+    List<Polytope> level = Collections.singletonList(p);
+    cofacets.put(p, new ArrayList<Polytope>());
+    for (int d = p.n; d >= 0; d--) {
+      levels.add(level);
+      List<Polytope> below = new ArrayList<Polytope>();
+      for (Polytope face: level) {
+        if (d > 0) {
+          indexed.add(face);
+          indexedFacets.add(face.facets);
+        }
+        for (Polytope facet: face.facets) {
+          List<Polytope> up = cofacets.get(facet);
+          if (up == null) {
+            up = new ArrayList<Polytope>();
+            cofacets.put(facet, up);
+            below.add(facet);
+          }
+          up.add(face);
+        }
+      }
+      level = below;
+    }
+    Collections.reverse(levels);
+    for (List<Polytope> faces: levels) {
+      byDimension.add(Collections.unmodifiableList(faces));
+    }
+  }
+
+  boolean isCurrent() {
+    for (int i = 0; i < indexed.size(); i++) {
+      if (indexed.get(i).facets != indexedFacets.get(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // All faces from the top dimension down
+  Stream<Polytope> stream() {
+    Stream<Polytope> result = Stream.empty();
+    for (int d = byDimension.size() - 1; d >= 0; d--) {
+      result = Stream.concat(result, byDimension.get(d).stream());
+    }
+    return result;
+  }
+
+  List<Polytope> faces(int dimension) {
+    if (dimension < 0 || dimension >= byDimension.size()) {
+      return Collections.emptyList();
+    }
+    return byDimension.get(dimension);
+  }
+
+  boolean contains(Polytope face) {
+    return cofacets.containsKey(face);
+  }
+
+  // The faces of a dimension that have face as a face, found by going up from it
+  List<Polytope> facesContaining(int dimension, Polytope face) {
+    if (!contains(face) || dimension < face.n || dimension >= byDimension.size()) {
+      return Collections.emptyList();
+    }
+    List<Polytope> level = Collections.singletonList(face);
+    for (int d = face.n; d < dimension; d++) {
+      Set<Polytope> visited = new HashSet<Polytope>();
+      List<Polytope> above = new ArrayList<Polytope>();
+      for (Polytope f: level) {
+        for (Polytope cofacet: cofacets.get(f)) {
+          if (visited.add(cofacet)) {
+            above.add(cofacet);
+          }
+        }
+      }
+      level = above;
+    }
+    return Collections.unmodifiableList(level);
+  }
+}
@@ -25,6 +25,17 @@ public class Fold3Solution {
   private Fold3Solution() {
   }
 
+  // The relation with the given description, null if there is none (for reading angles back)
+  static TrinaryAngle.Value value(String description) {
+    if (description.equals(descriptionGivenFacetAngles)) {
+      return valueGivenFacetAngles;
+    }
+    if (description.equals(descriptionGivenTwoFacetAnglesAndDihedralAngle)) {
+      return valueGivenTwoFacetAnglesAndDihedralAngle;
+    }
+    return null;
+  }
+
   // Relations
 
   // dihedral angles given facet angles
@@ -42,9 +53,9 @@ public class Fold3Solution {
     result.v1 = v1;
     result.v2 = v2;
     result.v3 = v3;
-    result.v12 = new TrinaryAngle(v1, v2, v3, valueGivenFacetAngles, descriptionGivenFacetAngles);
-    result.v23 = new TrinaryAngle(v2, v3, v1, valueGivenFacetAngles, descriptionGivenFacetAngles);
-    result.v31 = new TrinaryAngle(v1, v1, v2, valueGivenFacetAngles, descriptionGivenFacetAngles);
+    result.v12 = Angle.intern(new TrinaryAngle(v1, v2, v3, valueGivenFacetAngles, descriptionGivenFacetAngles));
+    result.v23 = Angle.intern(new TrinaryAngle(v2, v3, v1, valueGivenFacetAngles, descriptionGivenFacetAngles));
+    result.v31 = Angle.intern(new TrinaryAngle(v3, v1, v2, valueGivenFacetAngles, descriptionGivenFacetAngles));
     return result;
   }
 
@@ -67,13 +78,13 @@ public class Fold3Solution {
       }
     }
     if (result.v3 == null) {
-      result.v3 = new TrinaryAngle(facetAngle1, facetAngle2, dihedralAngle, valueGivenTwoFacetAnglesAndDihedralAngle,
-          descriptionGivenTwoFacetAnglesAndDihedralAngle);
+      result.v3 = Angle.intern(new TrinaryAngle(facetAngle1, facetAngle2, dihedralAngle, valueGivenTwoFacetAnglesAndDihedralAngle,
+          descriptionGivenTwoFacetAnglesAndDihedralAngle));
     }
-    result.v23 = new TrinaryAngle(result.v2, result.v3, result.v1, valueGivenFacetAngles,
-        descriptionGivenFacetAngles);
-    result.v31 = new TrinaryAngle(result.v3, result.v1, result.v2, valueGivenFacetAngles,
-        descriptionGivenFacetAngles);
+    result.v23 = Angle.intern(new TrinaryAngle(result.v2, result.v3, result.v1, valueGivenFacetAngles,
+        descriptionGivenFacetAngles));
+    result.v31 = Angle.intern(new TrinaryAngle(result.v3, result.v1, result.v2, valueGivenFacetAngles,
+        descriptionGivenFacetAngles));
     return result;
   }
 
@@ -66,6 +66,17 @@ public class Fold4Solution {
   private Fold4Solution() {
   }
 
+  // See Fold3Solution.value()
+  static QuintaryAngle.Value value(String description) {
+    if (description.equals(descriptionGivenFacetAnglesAndNearDihedralAngle)) {
+      return valueGivenFacetAnglesAndNearDihedralAngle;
+    }
+    if (description.equals(descriptionGivenFacetAnglesAndOppositeDihedralAngle)) {
+      return valueGivenFacetAnglesAndOppositeDihedralAngle;
+    }
+    return null;
+  }
+
   // Relations
 
   // dihedral angles given facet angles
@@ -85,9 +96,9 @@ public class Fold4Solution {
     result.v3 = v3;
     result.v4 = v4;
     result.v12 = v12;
-    result.v34 = new QuintaryAngle(v1, v2, v3, v4, v12, valueGivenFacetAnglesAndOppositeDihedralAngle, descriptionGivenFacetAnglesAndOppositeDihedralAngle);
-    result.v23 = new QuintaryAngle(v1, v2, v3,  v4, v12, valueGivenFacetAnglesAndNearDihedralAngle, descriptionGivenFacetAnglesAndNearDihedralAngle);
-    result.v41 = new QuintaryAngle(v2, v1, v3,  v2, v12, valueGivenFacetAnglesAndNearDihedralAngle, descriptionGivenFacetAnglesAndNearDihedralAngle);
+    result.v34 = Angle.intern(new QuintaryAngle(v1, v2, v3, v4, v12, valueGivenFacetAnglesAndOppositeDihedralAngle, descriptionGivenFacetAnglesAndOppositeDihedralAngle));
+    result.v23 = Angle.intern(new QuintaryAngle(v1, v2, v3,  v4, v12, valueGivenFacetAnglesAndNearDihedralAngle, descriptionGivenFacetAnglesAndNearDihedralAngle));
+    result.v41 = Angle.intern(new QuintaryAngle(v2, v1, v4,  v3, v12, valueGivenFacetAnglesAndNearDihedralAngle, descriptionGivenFacetAnglesAndNearDihedralAngle));
     return result;
   }
 
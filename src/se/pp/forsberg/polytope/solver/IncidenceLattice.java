@@ -0,0 +1,283 @@
+package se.pp.forsberg.polytope.solver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compact, read only form of the face lattice of a polytope.
+// Faces are numbered 0.. per dimension, the polytope itself is the only face of dimension n.
+// Incidences are sorted int arrays in both directions, angles are kept in arrays parallel to the ridges they belong to.
+// Built from a Polytope with of() and turned back into one with toPolytope(), everything in between
+// (certificates, invariants, validation) works on plain indexes without hashing any Polytope.
+public final class IncidenceLattice {
+  private final int n;
+  // facets[d][i] are the (d-1)-faces of the i:th d-face, cofacets[d][i] the (d+1)-faces containing it
+  private final int[][][] facets;
+  private final int[][][] cofacets;
+  // Ridges of each face that have an angle, and the angles
+  private final int[][][] angleRidges;
+  private final Angle[][][] angles;
+  private final int[][] ids;
+  private final String[][] names;
+  // The faces this was built from, null if it was read back from its parts
+  private final Polytope[][] faces;
+
+  private IncidenceLattice(int n, Polytope[][] faces, int[] counts) {
+    this.n = n;
+    this.faces = faces;
+    facets = new int[n + 1][][];
+    cofacets = new int[n + 1][][];
+    angleRidges = new int[n + 1][][];
+    angles = new Angle[n + 1][][];
+    ids = new int[n + 1][];
+    names = new String[n + 1][];
+    for (int d = 0; d <= n; d++) {
+      int count = counts[d];
+      facets[d] = new int[count][];
+      cofacets[d] = new int[count][];
+      angleRidges[d] = new int[count][];
+      angles[d] = new Angle[count][];
+      ids[d] = new int[count];
+      names[d] = new String[count];
+    }
+  }
+
+  public static IncidenceLattice of(Polytope p) {
+    int n = p.n;
+    // Number the faces, dimension by dimension from the top
+    List<Map<Polytope, Integer>> indexes = new ArrayList<Map<Polytope, Integer>>();
+    List<List<Polytope>> byDimension = new ArrayList<List<Polytope>>();
+    for (int d = 0; d <= n; d++) {
+      indexes.add(new HashMap<Polytope, Integer>());
+      byDimension.add(new ArrayList<Polytope>());
+    }
+    indexes.get(n).put(p, 0);
+    byDimension.get(n).add(p);
+    for (int d = n; d > 0; d--) {
+      Map<Polytope, Integer> lower = indexes.get(d - 1);
+      for (Polytope face: byDimension.get(d)) {
+        for (Polytope facet: face.facets) {
+          if (!lower.containsKey(facet)) {
+            lower.put(facet, lower.size());
+            byDimension.get(d - 1).add(facet);
+          }
+        }
+      }
+    }
+    Polytope[][] faces = new Polytope[n + 1][];
+    int[] counts = new int[n + 1];
+    for (int d = 0; d <= n; d++) {
+      faces[d] = byDimension.get(d).toArray(new Polytope[0]);
+      counts[d] = faces[d].length;
+    }
+    IncidenceLattice result = new IncidenceLattice(n, faces, counts);
+    for (int d = 0; d <= n; d++) {
+      for (int i = 0; i < faces[d].length; i++) {
+        Polytope face = faces[d][i];
+        result.ids[d][i] = face.id;
+        result.names[d][i] = face.getName();
+        if (d > 0) {
+          result.facets[d][i] = indexesOf(face.facets, indexes.get(d - 1));
+        } else {
+          result.facets[d][i] = new int[0];
+        }
+        if (d > 1) {
+          int[] ridges = indexesOf(face.ridgeAngles.keySet(), indexes.get(d - 2));
+          Angle[] faceAngles = new Angle[ridges.length];
+          for (int r = 0; r < ridges.length; r++) {
+            faceAngles[r] = face.ridgeAngles.get(faces[d - 2][ridges[r]]);
+          }
+          result.angleRidges[d][i] = ridges;
+          result.angles[d][i] = faceAngles;
+        } else {
+          result.angleRidges[d][i] = new int[0];
+          result.angles[d][i] = new Angle[0];
+        }
+      }
+    }
+    result.fillCofacets();
+    return result;
+  }
+
+  // A lattice read back from its parts (see Catalog), indexed [dimension][face].
+  // Facets and angle ridges must be sorted. face() is not available.
+  static IncidenceLattice of(int[][][] facets, int[][] ids, String[][] names, int[][][] angleRidges, Angle[][][] angles) {
+    int n = facets.length - 1;
+    int[] counts = new int[n + 1];
+    for (int d = 0; d <= n; d++) {
+      counts[d] = facets[d].length;
+    }
+    IncidenceLattice result = new IncidenceLattice(n, null, counts);
+    for (int d = 0; d <= n; d++) {
+      for (int i = 0; i < counts[d]; i++) {
+        result.facets[d][i] = facets[d][i];
+        result.angleRidges[d][i] = angleRidges[d][i];
+        result.angles[d][i] = angles[d][i];
+        result.ids[d][i] = ids[d][i];
+        result.names[d][i] = names[d][i];
+      }
+    }
+    result.fillCofacets();
+    return result;
+  }
+
+  private void fillCofacets() {
+    cofacets[n][0] = new int[0];
+    // Upper faces are visited in index order, so the cofacet arrays come out sorted
+    for (int d = 0; d < n; d++) {
+      int[] cofacetCounts = new int[count(d)];
+      for (int[] upper: facets[d + 1]) {
+        for (int i: upper) {
+          cofacetCounts[i]++;
+        }
+      }
+      for (int i = 0; i < count(d); i++) {
+        cofacets[d][i] = new int[cofacetCounts[i]];
+      }
+      int[] filled = new int[count(d)];
+      for (int j = 0; j < count(d + 1); j++) {
+        for (int i: facets[d + 1][j]) {
+          cofacets[d][i][filled[i]++] = j;
+        }
+      }
+    }
+  }
+
+  private static int[] indexesOf(Iterable<Polytope> polytopes, Map<Polytope, Integer> index) {
+    List<Integer> list = new ArrayList<Integer>();
+    for (Polytope p: polytopes) {
+      Integer i = index.get(p);
+      if (i != null) {
+        list.add(i);
+      }
+    }
+    int[] result = new int[list.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = list.get(i);
+    }
+    Arrays.sort(result);
+    return result;
+  }
+
+  // New Polytope objects with the same lattice, names, ids and angles
+  public Polytope toPolytope() {
+    return toPolytope(n < 2 ? null : new Polytope(n));
+  }
+  WorkInProgress toWorkInProgress() {
+    return (WorkInProgress) toPolytope(new WorkInProgress(n));
+  }
+  // Vertexes and edges are always created here, larger faces at the top are given
+  private Polytope toPolytope(Polytope top) {
+    Polytope[][] result = new Polytope[n + 1][];
+    for (int d = 0; d <= n; d++) {
+      result[d] = new Polytope[count(d)];
+      for (int i = 0; i < count(d); i++) {
+        Polytope face;
+        if (d == n && top != null) {
+          face = top;
+          for (int facet: facets[d][i]) {
+            face.add(result[d - 1][facet]);
+          }
+        } else if (d == 0) {
+          face = new Vertex();
+        } else if (d == 1 && facets[d][i].length == 2) {
+          face = new Edge((Vertex) result[0][facets[d][i][0]], (Vertex) result[0][facets[d][i][1]]);
+        } else {
+          face = new Polytope(d);
+          for (int facet: facets[d][i]) {
+            face.add(result[d - 1][facet]);
+          }
+        }
+        for (int r = 0; r < angleRidges[d][i].length; r++) {
+          face.setAngle(result[d - 2][angleRidges[d][i][r]], angles[d][i][r]);
+        }
+        face.setName(names[d][i]);
+        face.setId(ids[d][i]);
+        result[d][i] = face;
+      }
+    }
+    return result[n][0];
+  }
+
+  public int getDimensions() {
+    return n;
+  }
+  public int count(int d) {
+    return facets[d].length;
+  }
+  public int[] facets(int d, int i) {
+    return facets[d][i];
+  }
+  public int[] cofacets(int d, int i) {
+    return cofacets[d][i];
+  }
+  public boolean contains(int d, int i, int facet) {
+    return Arrays.binarySearch(facets[d][i], facet) >= 0;
+  }
+  public int id(int d, int i) {
+    return ids[d][i];
+  }
+  public String name(int d, int i) {
+    return names[d][i];
+  }
+  // The Polytope the face was built from
+  public Polytope face(int d, int i) {
+    return faces[d][i];
+  }
+  public int[] angleRidges(int d, int i) {
+    return angleRidges[d][i];
+  }
+  public Angle[] angles(int d, int i) {
+    return angles[d][i];
+  }
+
+  // Alternating sum of the number of proper faces, 1 - (-1)^n for a closed polytope (Euler-Poincare)
+  public int eulerCharacteristic() {
+    int result = 0;
+    for (int d = 0; d < n; d++) {
+      result += d % 2 == 0 ? count(d) : -count(d);
+    }
+    return result;
+  }
+
+  // Index of the first ridge that does not belong to exactly two facets, or -1 if there is none
+  public int unclosedRidge() {
+    if (n < 2) {
+      return -1;
+    }
+    for (int r = 0; r < count(n - 2); r++) {
+      if (cofacets[n - 2][r].length != 2) {
+        return r;
+      }
+    }
+    return -1;
+  }
+
+  // All facets can be reached from each other by crossing ridges
+  public boolean isConnected() {
+    if (n < 2 || count(n - 1) == 0) {
+      return true;
+    }
+    boolean[] reached = new boolean[count(n - 1)];
+    int[] stack = new int[count(n - 1)];
+    int top = 0;
+    int reachedCount = 1;
+    reached[0] = true;
+    stack[top++] = 0;
+    while (top > 0) {
+      int facet = stack[--top];
+      for (int ridge: facets[n - 1][facet]) {
+        for (int neighbor: cofacets[n - 2][ridge]) {
+          if (!reached[neighbor]) {
+            reached[neighbor] = true;
+            reachedCount++;
+            stack[top++] = neighbor;
+          }
+        }
+      }
+    }
+    return reachedCount == count(n - 1);
+  }
+}
@@ -0,0 +1,98 @@
+package se.pp.forsberg.polytope.solver;
+
+import java.util.Arrays;
+
+// Cheap invariants of a polytope, the same for any two polytopes that can be equated.
+// Comparing them before searching for equivalences rejects most candidates
+// without allocating any Equivalences.
+public final class Invariants {
+  private static final double epsilon = 0.000001;
+  // Number of faces per dimension
+  private final int[] fVector;
+  // Prototype ids of the facets, sorted
+  private final int[] facetIds;
+  // Number of edges at each vertex, sorted
+  private final int[] vertexDegrees;
+  // Angles at the ridges, sorted. Compared with a tolerance, the same angle may be computed in different ways.
+  private final double[] ridgeAngles;
+  private final int hash;
+
+  private Invariants(int[] fVector, int[] facetIds, int[] vertexDegrees, double[] ridgeAngles) {
+    this.fVector = fVector;
+    this.facetIds = facetIds;
+    this.vertexDegrees = vertexDegrees;
+    this.ridgeAngles = ridgeAngles;
+    int h = Arrays.hashCode(fVector);
+    h = 31 * h + Arrays.hashCode(facetIds);
+    h = 31 * h + Arrays.hashCode(vertexDegrees);
+    // Not the angles, they are only equal within the tolerance
+    this.hash = h;
+  }
+
+  static Invariants of(Polytope p) {
+    return of(p.getLattice());
+  }
+  static Invariants of(IncidenceLattice lattice) {
+    int n = lattice.getDimensions();
+    int[] fVector = new int[n + 1];
+    for (int d = 0; d <= n; d++) {
+      fVector[d] = lattice.count(d);
+    }
+    int[] facetIds = new int[n > 0 ? lattice.count(n - 1) : 0];
+    for (int i = 0; i < facetIds.length; i++) {
+      facetIds[i] = lattice.id(n - 1, i);
+    }
+    Arrays.sort(facetIds);
+    int[] vertexDegrees = new int[n > 0 ? lattice.count(0) : 0];
+    for (int i = 0; i < vertexDegrees.length; i++) {
+      vertexDegrees[i] = lattice.cofacets(0, i).length;
+    }
+    Arrays.sort(vertexDegrees);
+    Angle[] angles = lattice.angles(n, 0);
+    double[] ridgeAngles = new double[angles.length];
+    int count = 0;
+    for (Angle angle: angles) {
+      if (!(angle instanceof Angle.Unknown)) {
+        ridgeAngles[count++] = angle.getAngle();
+      }
+    }
+    ridgeAngles = Arrays.copyOf(ridgeAngles, count);
+    Arrays.sort(ridgeAngles);
+    return new Invariants(fVector, facetIds, vertexDegrees, ridgeAngles);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof Invariants)) {
+      return false;
+    }
+    Invariants other = (Invariants) obj;
+    return hash == other.hash &&
+        Arrays.equals(fVector, other.fVector) &&
+        Arrays.equals(facetIds, other.facetIds) &&
+        Arrays.equals(vertexDegrees, other.vertexDegrees) &&
+        equal(ridgeAngles, other.ridgeAngles);
+  }
+  private static boolean equal(double[] angles1, double[] angles2) {
+    if (angles1.length != angles2.length) {
+      return false;
+    }
+    for (int i = 0; i < angles1.length; i++) {
+      if (Math.abs(angles1[i] - angles2[i]) > epsilon) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return "f" + Arrays.toString(fVector) + " facets" + Arrays.toString(facetIds) +
+        " degrees" + Arrays.toString(vertexDegrees) + " angles" + Arrays.toString(ridgeAngles);
+  }
+}
@@ -0,0 +1,157 @@
+package se.pp.forsberg.polytope.solver;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+// Append only storage of binary records.
+// The snapshot holds everything known when it was written, the journal next to it the records appended since.
+// Appending costs what was appended, the journal is flushed to disk at most once per sync interval
+// and replaced by a new snapshot (compact()) once it has grown larger than the snapshot.
+// Snapshot and journal start with the same stamp. A journal left behind by an interrupted compaction
+// has an older stamp and is ignored, its records are all in the new snapshot.
+// Records are stored with their length and checksum, a torn last record is ignored as well.
+// Not thread safe.
+class Journal {
+  // Milliseconds between flushes of the journal to disk
+  private static final long syncInterval = Long.getLong("polytope.journal.sync", 1000);
+  // Smaller journals are not worth compacting
+  private static final long minimumCompaction = 64 * 1024;
+
+  private final File snapshotFile;
+  private final File journalFile;
+  // Open once the existing journal has been read, or after the first compaction
+  private FileChannel journal;
+  private long snapshotSize;
+  private long lastSync;
+  private boolean dirty;
+
+  Journal(File snapshotFile, File journalFile) {
+    this.snapshotFile = snapshotFile;
+    this.journalFile = journalFile;
+  }
+
+  // The snapshot followed by the complete records of its journal.
+  // Further records are appended after them.
+  // The snapshot is read into memory rather than mapped, a mapped file cannot be replaced on Windows
+  // and compact() would fail for as long as the solver runs.
+  List<ByteBuffer> read() throws IOException {
+    List<ByteBuffer> result = new ArrayList<ByteBuffer>();
+    ByteBuffer snapshot = ByteBuffer.wrap(Files.readAllBytes(snapshotFile.toPath()));
+    snapshotSize = snapshot.capacity();
+    long stamp = snapshot.getLong();
+    result.add(snapshot.slice());
+    if (!journalFile.exists()) {
+      return result;
+    }
+    FileChannel channel = FileChannel.open(journalFile.toPath(), READ, WRITE);
+    ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(journalFile.toPath()));
+    if (records.remaining() < 8 || records.getLong() != stamp) {
+      channel.close();
+      return result;
+    }
+    int end = records.position();
+    while (records.remaining() >= 4) {
+      int length = records.getInt();
+      if (length < 0 || records.remaining() < length + 8) {
+        break;
+      }
+      ByteBuffer record = records.slice();
+      record.limit(length);
+      records.position(records.position() + length);
+      if (records.getLong() != checksum(record)) {
+        break;
+      }
+      result.add(record);
+      end = records.position();
+    }
+    // Anything after the last complete record is overwritten
+    channel.truncate(end);
+    channel.position(end);
+    journal = channel;
+    return result;
+  }
+
+  boolean needsCompaction() throws IOException {
+    return journal == null || journal.size() > Math.max(snapshotSize, minimumCompaction);
+  }
+
+  void append(byte[] record) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(record.length + 12);
+    buffer.putInt(record.length);
+    buffer.put(record);
+    buffer.putLong(checksum(ByteBuffer.wrap(record)));
+    buffer.flip();
+    write(journal, buffer);
+    dirty = true;
+    if (System.currentTimeMillis() - lastSync >= syncInterval) {
+      sync();
+    }
+  }
+
+  void sync() throws IOException {
+    if (dirty) {
+      journal.force(false);
+      dirty = false;
+    }
+    lastSync = System.currentTimeMillis();
+  }
+
+  // Replaces the snapshot and empties the journal.
+  // The new snapshot is complete on disk before it replaces the old one.
+  void compact(byte[] snapshot) throws IOException {
+    long stamp = new Random().nextLong();
+    Path temporary = new File(snapshotFile.getPath() + ".tmp").toPath();
+    try (FileChannel out = FileChannel.open(temporary, CREATE, WRITE, TRUNCATE_EXISTING)) {
+      ByteBuffer buffer = ByteBuffer.allocate(snapshot.length + 8);
+      buffer.putLong(stamp);
+      buffer.put(snapshot);
+      buffer.flip();
+      write(out, buffer);
+      out.force(true);
+      snapshotSize = out.size();
+    }
+    try {
+      Files.move(temporary, snapshotFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(temporary, snapshotFile.toPath(), REPLACE_EXISTING);
+    }
+    if (journal != null) {
+      journal.close();
+    }
+    journal = FileChannel.open(journalFile.toPath(), CREATE, WRITE, TRUNCATE_EXISTING);
+    ByteBuffer header = ByteBuffer.allocate(8);
+    header.putLong(stamp);
+    header.flip();
+    write(journal, header);
+    dirty = true;
+    sync();
+  }
+
+  private static long checksum(ByteBuffer record) {
+    CRC32 crc = new CRC32();
+    crc.update(record.duplicate());
+    return crc.getValue();
+  }
+
+  private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+}
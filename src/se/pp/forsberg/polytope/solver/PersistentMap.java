@@ -0,0 +1,331 @@
+package se.pp.forsberg.polytope.solver;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+// Immutable hash map, plus() and minus() return a new map sharing everything but the changed path
+// with the old one (a hash array mapped trie, five bits of the hash per level).
+// The java.util.Map mutators are not supported.
+public final class PersistentMap<K, V> extends AbstractMap<K, V> {
+  private static final PersistentMap<Object, Object> EMPTY = new PersistentMap<Object, Object>(null, 0);
+  private static final Object NOT_FOUND = new Object();
+
+  private final Node root;
+  private final int size;
+
+  private PersistentMap(Node root, int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <K, V> PersistentMap<K, V> empty() {
+    return (PersistentMap<K, V>) EMPTY;
+  }
+
+  public PersistentMap<K, V> plus(K key, V value) {
+    if (key == null) {
+      throw new NullPointerException("Null key");
+    }
+    boolean[] added = {false};
+    Node newRoot = (root == null ? BitmapNode.EMPTY : root).plus(0, key.hashCode(), key, value, added);
+    if (newRoot == root) {
+      return this;
+    }
+    return new PersistentMap<K, V>(newRoot, added[0] ? size + 1 : size);
+  }
+
+  public PersistentMap<K, V> minus(Object key) {
+    if (root == null || key == null) {
+      return this;
+    }
+    Node newRoot = root.minus(0, key.hashCode(), key);
+    if (newRoot == root) {
+      return this;
+    }
+    return newRoot == null ? empty() : new PersistentMap<K, V>(newRoot, size - 1);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return root != null && key != null && root.find(0, key.hashCode(), key) != NOT_FOUND;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public V get(Object key) {
+    if (root == null || key == null) {
+      return null;
+    }
+    Object result = root.find(0, key.hashCode(), key);
+    return result == NOT_FOUND ? null : (V) result;
+  }
+
+  @Override
+  public Set<Map.Entry<K, V>> entrySet() {
+    return new AbstractSet<Map.Entry<K, V>>() {
+      @Override
+      public Iterator<Map.Entry<K, V>> iterator() {
+        return new NodeIterator<Map.Entry<K, V>>(root) {
+          @SuppressWarnings("unchecked")
+          @Override
+          Map.Entry<K, V> element(Object key, Object value) {
+            return new AbstractMap.SimpleImmutableEntry<K, V>((K) key, (V) value);
+          }
+        };
+      }
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+  // Cheaper than keySet().iterator(), no entries are created
+  Iterator<K> keyIterator() {
+    return new NodeIterator<K>(root) {
+      @SuppressWarnings("unchecked")
+      @Override
+      K element(Object key, Object value) {
+        return (K) key;
+      }
+    };
+  }
+
+  // Entries are stored pairwise in array, key then value.
+  // A null key means the value is a sub node.
+  private static abstract class Node {
+    final Object[] array;
+
+    Node(Object[] array) {
+      this.array = array;
+    }
+    abstract Object find(int shift, int hash, Object key);
+    abstract Node plus(int shift, int hash, Object key, Object value, boolean[] added);
+    // null if the node becomes empty
+    abstract Node minus(int shift, int hash, Object key);
+  }
+
+  private static final class BitmapNode extends Node {
+    static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+    final int bitmap;
+
+    BitmapNode(int bitmap, Object[] array) {
+      super(array);
+      this.bitmap = bitmap;
+    }
+
+    private static int bit(int shift, int hash) {
+      return 1 << ((hash >>> shift) & 31);
+    }
+    private int index(int bit) {
+      return 2 * Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    @Override
+    Object find(int shift, int hash, Object key) {
+      int bit = bit(shift, hash);
+      if ((bitmap & bit) == 0) {
+        return NOT_FOUND;
+      }
+      int i = index(bit);
+      Object k = array[i];
+      if (k == null) {
+        return ((Node) array[i + 1]).find(shift + 5, hash, key);
+      }
+      return key.equals(k) ? array[i + 1] : NOT_FOUND;
+    }
+
+    @Override
+    Node plus(int shift, int hash, Object key, Object value, boolean[] added) {
+      int bit = bit(shift, hash);
+      int i = index(bit);
+      if ((bitmap & bit) == 0) {
+        Object[] newArray = new Object[array.length + 2];
+        System.arraycopy(array, 0, newArray, 0, i);
+        newArray[i] = key;
+        newArray[i + 1] = value;
+        System.arraycopy(array, i, newArray, i + 2, array.length - i);
+        added[0] = true;
+        return new BitmapNode(bitmap | bit, newArray);
+      }
+      Object k = array[i];
+      Object v = array[i + 1];
+      if (k == null) {
+        Node node = ((Node) v).plus(shift + 5, hash, key, value, added);
+        return node == v ? this : new BitmapNode(bitmap, set(array, i + 1, node));
+      }
+      if (key.equals(k)) {
+        return v == value ? this : new BitmapNode(bitmap, set(array, i + 1, value));
+      }
+      added[0] = true;
+      Object[] newArray = set(array, i + 1, node(shift + 5, k, v, hash, key, value));
+      newArray[i] = null;
+      return new BitmapNode(bitmap, newArray);
+    }
+
+    @Override
+    Node minus(int shift, int hash, Object key) {
+      int bit = bit(shift, hash);
+      if ((bitmap & bit) == 0) {
+        return this;
+      }
+      int i = index(bit);
+      Object k = array[i];
+      if (k == null) {
+        Node node = ((Node) array[i + 1]).minus(shift + 5, hash, key);
+        if (node == array[i + 1]) {
+          return this;
+        }
+        if (node != null) {
+          return new BitmapNode(bitmap, set(array, i + 1, node));
+        }
+      } else if (!key.equals(k)) {
+        return this;
+      }
+      if (bitmap == bit) {
+        return null;
+      }
+      Object[] newArray = new Object[array.length - 2];
+      System.arraycopy(array, 0, newArray, 0, i);
+      System.arraycopy(array, i + 2, newArray, i, array.length - i - 2);
+      return new BitmapNode(bitmap & ~bit, newArray);
+    }
+
+    private static Node node(int shift, Object key1, Object value1, int hash2, Object key2, Object value2) {
+      int hash1 = key1.hashCode();
+      if (hash1 == hash2) {
+        return new CollisionNode(hash1, new Object[] {key1, value1, key2, value2});
+      }
+      boolean[] added = {false};
+      return EMPTY.plus(shift, hash1, key1, value1, added).plus(shift, hash2, key2, value2, added);
+    }
+  }
+
+  // Keys with identical hash codes
+  private static final class CollisionNode extends Node {
+    final int hash;
+
+    CollisionNode(int hash, Object[] array) {
+      super(array);
+      this.hash = hash;
+    }
+
+    private int index(Object key) {
+      for (int i = 0; i < array.length; i += 2) {
+        if (key.equals(array[i])) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    @Override
+    Object find(int shift, int hash, Object key) {
+      int i = hash == this.hash ? index(key) : -1;
+      return i < 0 ? NOT_FOUND : array[i + 1];
+    }
+
+    @Override
+    Node plus(int shift, int hash, Object key, Object value, boolean[] added) {
+      if (hash != this.hash) {
+        // Push this node one level down
+        return new BitmapNode(BitmapNode.bit(shift, this.hash), new Object[] {null, this})
+            .plus(shift, hash, key, value, added);
+      }
+      int i = index(key);
+      if (i >= 0) {
+        return array[i + 1] == value ? this : new CollisionNode(hash, set(array, i + 1, value));
+      }
+      Object[] newArray = new Object[array.length + 2];
+      System.arraycopy(array, 0, newArray, 0, array.length);
+      newArray[array.length] = key;
+      newArray[array.length + 1] = value;
+      added[0] = true;
+      return new CollisionNode(hash, newArray);
+    }
+
+    @Override
+    Node minus(int shift, int hash, Object key) {
+      int i = hash == this.hash ? index(key) : -1;
+      if (i < 0) {
+        return this;
+      }
+      if (array.length == 2) {
+        return null;
+      }
+      Object[] newArray = new Object[array.length - 2];
+      System.arraycopy(array, 0, newArray, 0, i);
+      System.arraycopy(array, i + 2, newArray, i, array.length - i - 2);
+      return new CollisionNode(hash, newArray);
+    }
+  }
+
+  private static Object[] set(Object[] array, int i, Object value) {
+    Object[] result = array.clone();
+    result[i] = value;
+    return result;
+  }
+
+  private static abstract class NodeIterator<T> implements Iterator<T> {
+    // Five bits of the hash per level, plus a collision node at the bottom
+    private static final int MAX_DEPTH = 8;
+    // Arrays of the nodes being visited, and the next position in each
+    private final Object[][] arrays = new Object[MAX_DEPTH][];
+    private final int[] positions = new int[MAX_DEPTH];
+    private int depth = -1;
+    private T next;
+
+    NodeIterator(Node root) {
+      if (root != null) {
+        arrays[++depth] = root.array;
+      }
+      advance();
+    }
+
+    abstract T element(Object key, Object value);
+
+    private void advance() {
+      next = null;
+      while (next == null && depth >= 0) {
+        Object[] array = arrays[depth];
+        int i = positions[depth];
+        if (i >= array.length) {
+          arrays[depth--] = null;
+          continue;
+        }
+        positions[depth] = i + 2;
+        if (array[i] == null) {
+          arrays[++depth] = ((Node) array[i + 1]).array;
+          positions[depth] = 0;
+        } else {
+          next = element(array[i], array[i + 1]);
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public T next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      T result = next;
+      advance();
+      return result;
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package se.pp.forsberg.polytope.solver;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+
+// Immutable hash set, plus() and minus() return a new set sharing structure with the old one.
+// See PersistentMap.
+public final class PersistentSet<T> extends AbstractSet<T> {
+  private static final PersistentSet<Object> EMPTY = new PersistentSet<Object>(PersistentMap.empty());
+
+  private final PersistentMap<T, Boolean> map;
+
+  private PersistentSet(PersistentMap<T, Boolean> map) {
+    this.map = map;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <T> PersistentSet<T> empty() {
+    return (PersistentSet<T>) EMPTY;
+  }
+
+  public PersistentSet<T> plus(T t) {
+    PersistentMap<T, Boolean> newMap = map.plus(t, Boolean.TRUE);
+    return newMap == map ? this : new PersistentSet<T>(newMap);
+  }
+
+  public PersistentSet<T> minus(Object t) {
+    PersistentMap<T, Boolean> newMap = map.minus(t);
+    return newMap == map ? this : new PersistentSet<T>(newMap);
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return map.containsKey(o);
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    return map.keyIterator();
+  }
+
+  @Override
+  public int size() {
+    return map.size();
+  }
+}
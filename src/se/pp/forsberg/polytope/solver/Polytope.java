@@ -5,6 +5,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -18,10 +19,25 @@ import java.util.stream.Stream;
 public class Polytope {
 
   protected final int n;
-  protected Set<Polytope> facets = new HashSet<Polytope>();
-  protected Map<Polytope, Angle> ridgeAngles = new HashMap<Polytope, Angle>();
+  // Persistent, modifications replace the collection and leave any earlier version intact,
+  // so the trail undoes one by keeping the reference it replaced. The polytope itself is still modified in place.
+  protected PersistentSet<Polytope> facets = PersistentSet.empty();
+  protected PersistentMap<Polytope, Angle> ridgeAngles = PersistentMap.empty();
   private String name;
   protected int id = -1;
+  // Set once the polytope is in the catalog, after that it is never modified
+  private boolean frozen;
+  private Invariants invariants;
+  // Read by every search thread, written once the polytope is frozen
+  private volatile IncidenceLattice lattice;
+  private Automorphisms automorphisms;
+  private volatile double smallestAngle = Double.NaN;
+  // Brought up to date on each lookup, see RidgeIndex and keepRidgeIndex()
+  private RidgeIndex ridgeIndex;
+  // Set once the index is up to date for a frozen polytope, after that it is read without locking
+  private volatile RidgeIndex frozenRidgeIndex;
+  // Rebuilt when it is no longer current, see FaceIndex
+  private volatile FaceIndex faceIndex;
   protected static final boolean DEBUG = true;
   
   public Polytope(int n) {
@@ -33,16 +49,16 @@ public class Polytope {
     if (facet.n != n-1) {
       throw new IllegalArgumentException("Facet in " + n + "-polytope must be " + (n-1) + " polytope");
     }
-    facets.add(facet);
+    facets = facets.plus(facet);
   }
   public void setAngle(Polytope ridge, Angle v) {
-    if (!stream().anyMatch(p -> p == ridge)) {
+    if (ridge == null || !hasFace(ridge)) {
       throw new IllegalArgumentException("No such ridge");
     }
     if (ridgeAngles.containsKey(ridge)) {
       throw new IllegalArgumentException("Angle already set");
     }
-    ridgeAngles.put(ridge, v);
+    ridgeAngles = ridgeAngles.plus(ridge, Angle.intern(v));
   }
   
 
@@ -100,6 +116,77 @@ public class Polytope {
   public int getId() {
     return id;
   }
+  void freeze() {
+    if (frozen) {
+      return;
+    }
+    frozen = true;
+    for (Polytope facet: facets) {
+      facet.freeze();
+    }
+  }
+  // Cached for frozen polytopes only, anything else may still change
+  public IncidenceLattice getLattice() {
+    IncidenceLattice result = lattice;
+    if (result == null) {
+      result = IncidenceLattice.of(this);
+      if (frozen) {
+        lattice = result;
+      }
+    }
+    return result;
+  }
+  public Invariants getInvariants() {
+    Invariants result = invariants;
+    if (result == null) {
+      result = Invariants.of(this);
+      if (frozen) {
+        invariants = result;
+      }
+    }
+    return result;
+  }
+  // Smallest angle at any ridge, 0 if some angle is unknown
+  public double getSmallestAngle() {
+    double result = smallestAngle;
+    if (Double.isNaN(result)) {
+      result = Double.POSITIVE_INFINITY;
+      for (Angle angle: ridgeAngles.values()) {
+        result = Math.min(result, angle instanceof Angle.Unknown ? 0 : angle.getAngle());
+      }
+      if (frozen) {
+        smallestAngle = result;
+      }
+    }
+    return result;
+  }
+  public Automorphisms getAutomorphisms() {
+    Automorphisms result = automorphisms;
+    if (result == null) {
+      result = Automorphisms.of(this);
+      if (frozen) {
+        automorphisms = result;
+      }
+    }
+    return result;
+  }
+  // Some chain of faces vertex < edge < .. < this, indexed by dimension
+  public Polytope[] flag() {
+    Polytope[] result = new Polytope[n + 1];
+    result[n] = this;
+    for (int d = n; d > 0; d--) {
+      result[d - 1] = result[d].facets.iterator().next();
+    }
+    return result;
+  }
+  // The faces mapped by equivalences, null for any that are not
+  private static Polytope[] map(Polytope[] faces, Map<Polytope, Polytope> equivalences) {
+    Polytope[] result = new Polytope[faces.length];
+    for (int d = 0; d < faces.length; d++) {
+      result[d] = equivalences.get(faces[d]);
+    }
+    return result;
+  }
   
   public Polytope copy() {
     Map<Polytope, Polytope> replacementMap = new HashMap<Polytope, Polytope>();
@@ -115,11 +202,24 @@ public class Polytope {
   }
   public void copyCommon(Polytope p, Map<Polytope, Polytope> replacementMap) {
     replacementMap.put(this, p);
+    // Facets that copy to themselves are shared, and then so is the collection
+    boolean shared = true;
     for (Polytope facet: facets) {
-      p.facets.add(facet.copy(replacementMap));
+      Polytope copy = facet.copy(replacementMap);
+      shared &= copy == facet;
+      p.facets = p.facets.plus(copy);
     }
+    if (shared) {
+      p.facets = facets;
+    }
+    shared = true;
     for (Polytope ridge: ridgeAngles.keySet()) {
-      p.ridgeAngles.put(replacementMap.get(ridge), ridgeAngles.get(ridge));
+      Polytope copy = replacementMap.get(ridge);
+      shared &= copy == ridge;
+      p.ridgeAngles = p.ridgeAngles.plus(copy, ridgeAngles.get(ridge));
+    }
+    if (shared) {
+      p.ridgeAngles = ridgeAngles;
     }
     copyCommon(p);
   }
@@ -129,7 +229,15 @@ public class Polytope {
   }
   
   public Polytope getOtherFacet(Polytope facet, Polytope ridge) {
-    return getComponent(p -> p != facet && p.facets.contains(ridge));
+    // Without an index, looking through the facets is cheaper than building a map
+    Set<Polytope> candidates = keepRidgeIndex() ? getRidgeToFacetMap().getOrDefault(ridge, Collections.emptySet()) : facets;
+    for (Polytope p: candidates) {
+      if (p != facet && p.facets.contains(ridge)) {
+        return p;
+      }
+    }
+    System.out.println("Ooops");
+    return null;
   }
   
   public Polytope getRandomFacet() {
@@ -310,7 +418,7 @@ public class Polytope {
   @Override
   public String toString() {
     StringBuilder stringBuilder = new StringBuilder();
-    Map<Angle, Integer> definedAngles = new HashMap<Angle, Integer>();
+    Map<Angle, Integer> definedAngles = new IdentityHashMap<Angle, Integer>();
     List<Angle> angles = new ArrayList<Angle>();
     toString(stringBuilder, definedAngles, angles);
     return stringBuilder.toString();
@@ -329,12 +437,14 @@ public class Polytope {
     }
   }
 
+  // Angles set on polytopes are interned, so definedAngles can be an IdentityHashMap
   public void toString(StringBuilder stringBuilder, Map<Angle, Integer> definedAngles, List<Angle> angles) {
     Map<Polytope, String> polytopeNames = new HashMap<Polytope, String>();
     Map<Integer, Set<String>> typesPerDimension = new HashMap<Integer, Set<String>>();
     Map<String, List<Polytope>> polytopesPerType = new HashMap<String, List<Polytope>>();
     Map<Pair<Polytope>, Angle> ridgeToAngleMap = new HashMap<Pair<Polytope>, Angle>();
-    Set<Angle> previouslyDefinedAngles = new HashSet<Angle>(definedAngles.keySet());
+    Set<Angle> previouslyDefinedAngles = Collections.newSetFromMap(new IdentityHashMap<Angle, Boolean>());
+    previouslyDefinedAngles.addAll(definedAngles.keySet());
     
     String name = getName();
     stringBuilder.append(n).append("-polytope ").append(id).append(' ').append(name);
@@ -344,8 +454,7 @@ public class Polytope {
     stringBuilder.append("\r\n");
     // Step 0) Collect names
     for (int i = 0; i < n; i++) {
-      int dimension = i;
-      stream().filter(p -> p.n == dimension).forEach(p ->
+      faces(i).forEach(p ->
         p.collectDefinitions(polytopeNames, typesPerDimension, polytopesPerType, definedAngles, angles, ridgeToAngleMap));
     }
     collectDefinitions(polytopeNames, typesPerDimension, polytopesPerType, definedAngles, angles, ridgeToAngleMap);
@@ -387,8 +496,7 @@ public class Polytope {
     }
     // Step 3) Recursively print angles between subcomponents
     for (int i = 2; i < n; i++) {
-      int dimension = i;
-      stream().filter(p -> p.n == dimension).forEach(p ->
+      faces(i).forEach(p ->
         p.toStringAngles(stringBuilder, polytopeNames, definedAngles, angles, ridgeToAngleMap));
     }
     toStringAngles(stringBuilder, polytopeNames, definedAngles, angles, ridgeToAngleMap);
@@ -501,13 +609,42 @@ public class Polytope {
     return ridgeAngles.get(ridge);
   }
 
+  // All faces, this one included, each exactly once, from the top dimension down.
+  // Faces are shared, a vertex by all edges around it and so on, so they are collected
+  // level by level rather than by following every path down to them.
   public Stream<Polytope> stream() {
-    return Stream.concat(
-        Stream.of(this),
-        facets.stream().flatMap(Polytope::stream));
+    return getFaceIndex().stream();
+  }
+  // The faces of a dimension, each exactly once. Read only.
+  public List<Polytope> faces(int dimension) {
+    return getFaceIndex().faces(dimension);
+  }
+  // Whether face is this polytope or any of its faces
+  public boolean hasFace(Polytope face) {
+    return getFaceIndex().contains(face);
+  }
+  // The faces of a dimension that have face, a vertex say, as one of their faces. Read only.
+  public List<Polytope> facesContaining(int dimension, Polytope face) {
+    return getFaceIndex().facesContaining(dimension, face);
+  }
+  // Kept until the polytope changes below it, frozen polytopes keep theirs for good
+  private FaceIndex getFaceIndex() {
+    FaceIndex result = faceIndex;
+    if (result == null || !frozen && !result.isCurrent()) {
+      result = new FaceIndex(this);
+      faceIndex = result;
+    }
+    return result;
   }
   public Polytope getComponent(Predicate<Polytope> predicate) {
-    Optional<Polytope> result = stream().filter(predicate).findAny();
+    return getComponent(stream(), predicate);
+  }
+  // Only looks at the faces of the given dimension
+  public Polytope getComponent(int dimension, Predicate<Polytope> predicate) {
+    return getComponent(faces(dimension).stream(), predicate);
+  }
+  private static Polytope getComponent(Stream<Polytope> components, Predicate<Polytope> predicate) {
+    Optional<Polytope> result = components.filter(predicate).findAny();
     if (!result.isPresent()) {
       System.out.println("Ooops");
       return null;
@@ -533,8 +670,7 @@ public class Polytope {
     }
     // Random facet
     Polytope facet = facets.iterator().next();
-    return other.stream()
-        .filter(p -> p.n == n-1)              // Facets in "other"
+    return other.facets.stream()              // Facets in "other"
         .flatMap(p ->  facet.waysToEquate(p)) // All ways to equate others facets to facet
         .filter(eqv -> anchor(other, eqv));   // Rest of polytope must also match 
 
@@ -592,12 +728,15 @@ public class Polytope {
   }
 
   public boolean equivalent(Polytope other) {
+    if (!getInvariants().equals(other.getInvariants())) {
+      return false;
+    }
     return waysToEquate(other).iterator().hasNext();
   }
 
   // Find all ways this polytope can be connnected to the other
   // For instance, a triangle can be connected to a square in 24 ways (3 sides * 4 sides * 2 flip)
-  // (but they are all equivalent)
+  // (but they are all equivalent, so only one is returned, see below)
   // For all ways of selecting a facet from this and one from other,
   // select all ways to equate the facets (possibly 0)
   // For instance with a triangular prism and a cube we can't connect the triangular faces
@@ -607,21 +746,36 @@ public class Polytope {
         facet -> waysToConnect(other, facet));
   }
   // Find all ways this polytope can be connnected to the other using the specified facet
+  // Ways that differ only by a symmetry of other give the same result, only the one taking
+  // the flag of facet to the first flag of its orbit is returned
   public Stream<Equivalences> waysToConnect(Polytope other, Polytope facet) {
-    // For each facet in other
+    Invariants invariants = facet.getInvariants();
+    Automorphisms symmetries = other.getAutomorphisms();
+    Polytope[] flag = facet.flag();
+    // For each facet in other that could match
     // All ways to equate
-    return other.facets.stream().flatMap(otherFacet -> facet.waysToEquate(otherFacet));
+    return other.facets.stream()
+        .filter(otherFacet -> symmetries.isFirst(otherFacet))
+        .filter(otherFacet -> invariants.equals(otherFacet.getInvariants()))
+        .flatMap(otherFacet -> facet.waysToEquate(otherFacet))
+        .filter(equivalences -> symmetries.isFirst(map(flag, equivalences.p1p2)));
   }
   // Find all ways this polytope can be connnected to both specified facets (which must be connected)
+  // As above only one of the ways that differ by a symmetry of this polytope is returned, here the one
+  // taking the flag of f1 to the first flag of its orbit
   public Stream<Equivalences> waysToConnectFacets(Polytope f1, Polytope f2) {
+    Automorphisms symmetries = getAutomorphisms();
+    Polytope[] flag = f1.flag();
     // For each facet
-    return facets.stream().flatMap(
+    return facets.stream().filter(facet -> symmetries.isFirst(facet)).flatMap(
     // For each neighbor facet
         facet -> facet.facets.stream().flatMap(
             ridge -> {
             Polytope neighbor = getOtherFacet(facet, ridge);
             // Attempt to connect f1
-            return facet.waysToEquate(f1).flatMap(
+            return facet.waysToEquate(f1)
+                .filter(equivalencesWithF1 -> symmetries.isFirst(map(flag, equivalencesWithF1.p2p1)))
+                .flatMap(
                 // And f2
                 equivalencesWithF1 -> neighbor.waysToEquate(f2)
                 // In such a way that the ridge is the same
@@ -641,18 +795,50 @@ public class Polytope {
   
   // Recursively replaces any references of components mentioned in equivalences with their equivalents
   public Polytope equate(Map<Polytope, Polytope> equivalences) {
+    return equate(equivalences, null);
+  }
+  // Same, but if trail is not null anything replaced is recorded so it can be undone
+  public Polytope equate(Map<Polytope, Polytope> equivalences, Trail trail) {
     if (equivalences.containsKey(this)) {
       return equivalences.get(this);
     }
-    Set<Polytope> newFacets = new HashSet<Polytope>();
+    // Remove everything replaced before adding the replacements, a replacement may itself be replaced
+    PersistentSet<Polytope> newFacets = facets;
+    List<Polytope> facetReplacements = new ArrayList<Polytope>();
     for (Polytope facet: facets) {
-      newFacets.add(facet.equate(equivalences));
+      Polytope replacement = facet.equate(equivalences, trail);
+      if (replacement != facet) {
+        newFacets = newFacets.minus(facet);
+        facetReplacements.add(replacement);
+      }
     }
-    facets = newFacets;
-    Map<Polytope, Angle> newRidgeAngles = new HashMap<Polytope, Angle>();
+    for (Polytope replacement: facetReplacements) {
+      newFacets = newFacets.plus(replacement);
+    }
+    PersistentMap<Polytope, Angle> newRidgeAngles = ridgeAngles;
+    Map<Polytope, Angle> angleReplacements = new HashMap<Polytope, Angle>();
     for (Polytope ridge: ridgeAngles.keySet()) {
-      newRidgeAngles.put(ridge.equate(equivalences), ridgeAngles.get(ridge));
+      Polytope replacement = ridge.equate(equivalences, trail);
+      if (replacement != ridge) {
+        newRidgeAngles = newRidgeAngles.minus(ridge);
+        angleReplacements.put(replacement, ridgeAngles.get(ridge));
+      }
+    }
+    for (Polytope replacement: angleReplacements.keySet()) {
+      newRidgeAngles = newRidgeAngles.plus(replacement, angleReplacements.get(replacement));
+    }
+    if (newFacets == facets && newRidgeAngles == ridgeAngles) {
+      return this;
+    }
+    if (trail != null) {
+      PersistentSet<Polytope> oldFacets = facets;
+      PersistentMap<Polytope, Angle> oldRidgeAngles = ridgeAngles;
+      trail.push(() -> {
+        facets = oldFacets;
+        ridgeAngles = oldRidgeAngles;
+      });
     }
+    facets = newFacets;
     ridgeAngles = newRidgeAngles;
     return this;
   }
@@ -719,19 +905,42 @@ public class Polytope {
 //  }
 //  Map<Polytope, Polytope> equivalences = ways.get();
 
+  // Read only snapshots, later changes to the polytope do not show up in them
   public Map<Polytope, Set<Polytope>> getRidgeToFacetMap() {
-    Map<Polytope, Set<Polytope>> result = new HashMap<Polytope, Set<Polytope>>();
-    for (Polytope facet: facets) {
-      for (Polytope ridge: facet.facets) {
-        Set<Polytope> ridgeFacets = result.get(ridge);
-        if (ridgeFacets == null) {
-          ridgeFacets = new HashSet<Polytope>();
-          result.put(ridge, ridgeFacets);
-        }
-        ridgeFacets.add(facet);
+    return getRidgeIndex().ridgeToFacets();
+  }
+  // By corner I mean a (n-3) face
+  public Map<Polytope, Set<Polytope>> getCornerToRidgeMap() {
+    return getRidgeIndex().cornerToRidges();
+  }
+  // Worth keeping an index up to date only for polytopes that are looked at again and again
+  protected boolean keepRidgeIndex() {
+    return frozen;
+  }
+  private RidgeIndex getRidgeIndex() {
+    // Edges and vertexes have no ridges
+    if (n < 2) {
+      return RidgeIndex.EMPTY;
+    }
+    RidgeIndex result = frozenRidgeIndex;
+    if (result != null) {
+      return result;
+    }
+    if (!keepRidgeIndex()) {
+      result = new RidgeIndex();
+      result.update(facets);
+      return result;
+    }
+    synchronized (this) {
+      if (ridgeIndex == null) {
+        ridgeIndex = new RidgeIndex();
+      }
+      ridgeIndex.update(facets);
+      if (frozen) {
+        frozenRidgeIndex = ridgeIndex;
       }
+      return ridgeIndex;
     }
-    return result;
   }
   
   public void check() {
@@ -6,25 +6,37 @@ import static java.lang.Math.sin;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import se.pp.forsberg.polytope.solver.Angle.TrinaryAngle;
 import se.pp.forsberg.polytope.solver.WorkInProgress.CornerAngles;
@@ -38,11 +50,62 @@ import se.pp.forsberg.polytope.solver.WorkInProgress.FacetChain;
 // Facets are connected pair-wise at ridges, and the angle between two facets around an ridge is the dihedral angle.
 public class PolytopeSolver {
   
-  private List<Polytope> solved = new ArrayList<Polytope>();
-  private Map<Integer, List<Polytope>> solvedByDimension = new HashMap<Integer, List<Polytope>>();
+  // Read while searching, also while other dimensions add to them when pipelined
+  private List<Polytope> solved = new CopyOnWriteArrayList<Polytope>();
+  private Map<Integer, List<Polytope>> solvedByDimension = new ConcurrentHashMap<Integer, List<Polytope>>();
   private Map<String, Polytope> nameToPolytopeMap = new HashMap<String, Polytope>();
+  // Sums of the angles at the ridges of the polytopes in solvedByDimension, see waysToSelect1() and canClose()
+  private Map<Integer, AngleSums> angleSumsByDimension = new ConcurrentHashMap<Integer, AngleSums>();
+  // Catalog keyed by canonical form, polytopes that can't be given a certificate are only in the lists above
+  private Map<Certificate, List<Polytope>> solvedByCertificate = new HashMap<Certificate, List<Polytope>>();
   
+  private final static File catalogFile = new File(new File(System.getProperty("user.home")), "polytopes.catalog");
+  private final static File journalFile = new File(new File(System.getProperty("user.home")), "polytopes.journal");
+  // Written with the catalog for humans to read, only read if there is no catalog
   private final static File spoolFile = new File(new File(System.getProperty("user.home")), "polytopes.txt");
+  private final Journal journal = new Journal(catalogFile, journalFile);
+  // Polytopes in solved that are in the catalog or journaled, -1 until the catalog has been read or written
+  private int spooled = -1;
+  private StartingPoint spooledStartingPoint;
+  // Milliseconds between checkpoints of the search below a starting point, and how many corners deep they go
+  private final static long checkpointInterval = Long.getLong("polytope.checkpoint.interval", 5000);
+  private final static int checkpointDepth = Integer.getInteger("polytope.checkpoint.depth", 4);
+  // Of the sequential search, and the last one journaled before a restart, until its starting point comes up
+  private Checkpoint checkpoint;
+  private Checkpoint resumeFrom;
+  private long lastCheckpoint;
+  // Number of worker threads for the parallel search, 0 (default) searches on the calling thread only
+  private final static int parallelism = Integer.getInteger("polytope.parallelism", 0);
+  // Bytes of heap for states known to have been searched, 0 to search every state reached.
+  // Not used by the parallel search: whichever task got to a state first would search it, and what is found
+  // below it would be merged in that task's turn, so names and ids would depend on the timing of the threads.
+  private final static long transpositionBudget = Long.getLong("polytope.transposition.budget", 16 << 20);
+  private final TranspositionTable transpositions = transpositionBudget > 0 && parallelism == 0 ?
+      new TranspositionTable(transpositionBudget) : null;
+  // Corners completed before a search subtree is no longer split into further tasks.
+  // Must not depend on the number of threads, or the order of discovery would.
+  private final static int forkDepth = 2;
+  // Part i of m of the starting points of each size to search, as "i/m", all of them if not given.
+  // Lets several processes share the search.
+  private final static int[] partition = partition(System.getProperty("polytope.partition"));
+  private ForkJoinPool pool;
+
+  // Search the next dimension as soon as the first polytope of this one has been found, see DimensionSearch.
+  // The search is not checkpointed.
+  private final static boolean pipeline = Boolean.getBoolean("polytope.pipeline");
+  // Dimensions up to this have been searched completely, 0 until the pipeline starts
+  private int finished;
+  // Why the search of some dimension failed, the search of every dimension stops then
+  private Throwable failure;
+  // Highest dimension being searched
+  private int highestSearched;
+  // Current starting point of each dimension being searched, the lowest one is spooled
+  private final Map<Integer, StartingPoint> searchedStartingPoints = new HashMap<Integer, StartingPoint>();
+
+  // What the search has done, as an MXBean and appended to the statistics file every so many milliseconds, 0 never
+  private final static File statisticsFile = new File(new File(System.getProperty("user.home")), "polytopes.statistics");
+  private final static long statisticsInterval = Long.getLong("polytope.statistics.interval", 60000);
+  private final SolverStatistics statistics = new SolverStatistics();
   
   // (Re-)Starting point of calculation is currently a work in progress with just one facet chain set
   private class StartingPoint {
@@ -83,19 +146,7 @@ public class PolytopeSolver {
       for (i = 0; i < facets.size(); i++) {
         chain.add(ridges.get(i), facets.get(i));
       }
-      p.finishedCorners.put(corner, chain);
-    }
-    public StartingPoint(int dimension, int n) {
-      // Fake
-      Polytope facet = solvedByDimension.get(dimension-1).get(0);
-      int id = facet.id;
-      ids = new int[n];
-      p = new WorkInProgress(dimension);
-      for (int i = 0; i < n; i++) {
-        ids[i] = id;
-        p.add(facet.copy());
-      }
-      
+      p.finishedCorners = p.finishedCorners.plus(corner, chain);
     }
     @Override
     public String toString() {
@@ -110,11 +161,24 @@ public class PolytopeSolver {
     }
   }
   
+  private static int[] partition(String property) {
+    if (property == null) {
+      return null;
+    }
+    String[] parts = property.split("/");
+    int[] result = { Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()) };
+    if (result[1] <= 0 || result[0] < 0 || result[0] >= result[1]) {
+      throw new IllegalArgumentException("Bad partition " + property);
+    }
+    return result;
+  }
+
   public static void main(String[] arguments) {
     new PolytopeSolver().solve();
   }
 
   private void solve() {
+    statistics.start(statisticsFile, statisticsInterval);
     continuePrevious();
   }
 
@@ -136,24 +200,53 @@ public class PolytopeSolver {
     add(new Edge(copyVertex(), copyVertex()), "Edge");
     
     try {
-      BufferedReader in = new BufferedReader(new FileReader(spoolFile));
+      startingPoint = new StartingPoint(catalogFile.exists() ? readCatalog() : readText());
+    } catch (Exception e) {
+      e.printStackTrace();
+      solved.clear();
+      solvedByDimension.clear();
+      nameToPolytopeMap.clear();
+      solvedByCertificate.clear();
+      addBasic();
+      startingPoint = getStartingPoint(3);
+    }
+    solve(startingPoint);
+  }
+  // Reads the catalog and what was journaled after it was written, the last starting point is where to continue.
+  // Every polytope is decoded at once, the search and the index of known polytopes need all of them.
+  // What the binary catalog saves over polytopes.txt is the parsing, not the decoding.
+  private WorkInProgress readCatalog() throws IOException {
+    WorkInProgress start = null;
+    for (ByteBuffer record: journal.read()) {
+      if (Checkpoint.isCheckpoint(record)) {
+        resumeFrom = Checkpoint.of(record);
+        continue;
+      }
+      Catalog catalog = Catalog.of(record);
+      for (int i = 0; i < catalog.size(); i++) {
+        load(catalog.get(catalog.id(i)));
+      }
+      WorkInProgress startingPoint = catalog.getStartingPoint();
+      if (startingPoint != null) {
+        start = startingPoint;
+      }
+    }
+    if (start == null) {
+      throw new IOException("No starting point in " + catalogFile);
+    }
+    spooled = solved.size();
+    return start;
+  }
+  // Reads polytopes.txt as written before there was a catalog
+  private WorkInProgress readText() throws IOException, InstantiationException, IllegalAccessException, IllegalArgumentException, InvocationTargetException, NoSuchMethodException, SecurityException {
+    try (BufferedReader in = new BufferedReader(new FileReader(spoolFile))) {
       //Set<String> definedNames = new HashSet<String>();
       List<Angle> angles = new ArrayList<Angle>();
       String line;
       int[] lineNumber = {0};
       Polytope p;
       while ((p = readPolytope(in, angles, lineNumber)) != null) {
-        if (p.n < 2) {
-          continue;
-        }
-        solved.add(p.id, p);
-        List<Polytope> byDimension = solvedByDimension.get(p.n);
-        if (byDimension == null) {
-          byDimension = new ArrayList<Polytope>();
-          solvedByDimension.put(p.n, byDimension);
-        }
-        byDimension.add(p);
-        nameToPolytopeMap.put(p.getName(), p);
+        load(p);
       }
 //      // After main definitions we expect a line, then current starting point
 //      if ((line = line(in, lineNumber)) == null) {
@@ -164,16 +257,24 @@ public class PolytopeSolver {
 //        throw new IOException("Line " + lineNumber[0] + ": Invalid starting point " + line);
 //      }
       // Starting point currently is a WorkInProgress
-      startingPoint = new StartingPoint(readPolytope(in, angles, WorkInProgress.class, lineNumber));
-    } catch (Exception e) {
-      e.printStackTrace();
-      solved.clear();
-      solvedByDimension.clear();
-      nameToPolytopeMap.clear();
-      addBasic();
-      startingPoint = getStartingPoint(3);
+      return readPolytope(in, angles, WorkInProgress.class, lineNumber);
     }
-    solve(startingPoint);
+  }
+  private void load(Polytope p) {
+    if (p.n < 2) {
+      return;
+    }
+    solved.add(p.id, p);
+    List<Polytope> byDimension = solvedByDimension.get(p.n);
+    if (byDimension == null) {
+      byDimension = new CopyOnWriteArrayList<Polytope>();
+      solvedByDimension.put(p.n, byDimension);
+    }
+    byDimension.add(p);
+    nameToPolytopeMap.put(p.getName(), p);
+    p.freeze();
+    angleSumsByDimension.compute(p.n, (d, sums) -> (sums != null ? sums : AngleSums.EMPTY).plus(p));
+    index(p, Certificate.of(p));
   }
   private StartingPoint getStartingPoint(int n) {
     // Item 0 should always be the simplex and can be connected any which way to other simplexes
@@ -214,10 +315,6 @@ public class PolytopeSolver {
     result.add(facet3);
     return new StartingPoint(result);
   }
-  private StartingPoint getStartingPoint(int dimension, int n) {
-    StartingPoint firstStartingPoint = new StartingPoint(dimension, n);
-    return startingPointsIncluding(firstStartingPoint).findAny().get();
-  }
   private Polytope readPolytope(BufferedReader in, List<Angle> angles, int... lineNumber) throws IOException, InstantiationException, IllegalAccessException, IllegalArgumentException, InvocationTargetException, NoSuchMethodException, SecurityException {
     return readPolytope(in, angles, Polytope.class, lineNumber);
   }
@@ -287,6 +384,8 @@ public class PolytopeSolver {
           throw new IllegalArgumentException("Edge needs two vertexes");
         }
         Edge edge = new Edge(v1, v2);
+        // Same id as fresh copies of the edge prototype, facet ids are part of the invariants
+        edge.setId(getEdge().id);
         components.put(fullName, edge);
         if (n == 2) {
           p.add(edge);
@@ -333,14 +432,14 @@ public class PolytopeSolver {
       if (match.matches()) {
         int nominator = match.group(1).isEmpty()? 1 : Integer.parseInt(match.group(1));
         int denominator = match.group(2).isEmpty()? 1 : Integer.parseInt(match.group(3));
-        angles.add(id, new Angle.RationalPi(nominator, denominator));
+        defineAngle(angles, id, new Angle.RationalPi(nominator, denominator));
       } else {
         match = rationalAcos.matcher(definition);
         if (match.matches()) {
           int multiplier = match.group(1) == null? 1 : Integer.parseInt(match.group(1).substring(0,  match.group(1).length()-1));
           int nominator = Integer.parseInt(match.group(2));
           int denominator = Integer.parseInt(match.group(3));
-          angles.add(id,  new Angle.RationalAcos(multiplier, nominator, denominator));
+          defineAngle(angles, id, new Angle.RationalAcos(multiplier, nominator, denominator));
         } else {
           throw new IOException("Line " + lineNumber[0] + ": Syntax error on angle definition " + definition);
         }
@@ -409,6 +508,14 @@ public class PolytopeSolver {
     return p;
   }
 
+  // Unknown angles are numbered when written but never defined, leave their numbers empty
+  private static void defineAngle(List<Angle> angles, int id, Angle angle) {
+    while (angles.size() <= id) {
+      angles.add(null);
+    }
+    angles.set(id, angle);
+  }
+
   private static <Key, Value> Value safeGet(Map<Key, List<Value>> map, Key key, int i) {
     List<Value> list = map.get(key);
     if (list == null) {
@@ -450,9 +557,57 @@ public class PolytopeSolver {
     return result;
   }
 
+  // Journals the polytopes added to the catalog since last time, and the starting point if it changed
+  // When pipelined the starting point of the lowest dimension being searched is the one to continue from
   private synchronized void spool(StartingPoint startingPoint) {
+    if (highestSearched > 0) {
+      // Nothing more is saved, in particular no starting point past the dimension that failed
+      if (failure != null) {
+        throw new Stopped();
+      }
+      searchedStartingPoints.put(startingPoint.p.n, startingPoint);
+      StartingPoint lowest = searchedStartingPoints.get(finished + 1);
+      startingPoint = lowest != null ? lowest : spooledStartingPoint != null ? spooledStartingPoint : startingPoint;
+    }
+    SolverEvents.Spool event = new SolverEvents.Spool();
+    event.begin();
+    event.dimension = startingPoint.p.n;
+    int before = spooled;
+    try {
+      if (spooled < 0 || journal.needsCompaction()) {
+        compact(startingPoint);
+        event.compacted = true;
+        return;
+      }
+      for (; spooled < solved.size(); spooled++) {
+        Polytope p = solved.get(spooled);
+        if (p.n >= 2) {
+          journal.append(Catalog.encode(Collections.singletonList(p), null));
+        }
+      }
+      if (startingPoint != spooledStartingPoint) {
+        journal.append(Catalog.encode(Collections.emptyList(), startingPoint.p));
+        spooledStartingPoint = startingPoint;
+      }
+    } catch (IOException e) {
+      System.err.println("Spool failure!");
+      e.printStackTrace();
+    } finally {
+      event.polytopes = event.compacted ? spooled : spooled - before;
+      event.commit();
+    }
+  }
+  // Writes the whole catalog anew, and the text version of it
+  private void compact(StartingPoint startingPoint) throws IOException {
+    List<Polytope> polytopes = solved.stream().filter(p -> p.n >= 2).collect(Collectors.toList());
+    journal.compact(Catalog.encode(polytopes, startingPoint.p));
+    spooled = solved.size();
+    spooledStartingPoint = startingPoint;
+    if (checkpoint != null) {
+      journal.append(checkpoint.encode());
+    }
     try (PrintStream out =  new PrintStream(spoolFile)) {
-      Map<Angle, Integer> definedAngles = new HashMap<Angle, Integer>();
+      Map<Angle, Integer> definedAngles = new IdentityHashMap<Angle, Integer>();
       List<Angle> angles  = new ArrayList<Angle>();
       for (int i = 2; solvedByDimension.containsKey(i); i++) {
         for (Polytope p: solvedByDimension.get(i)) {
@@ -465,40 +620,86 @@ public class PolytopeSolver {
       StringBuilder stringBuilder = new StringBuilder();
       startingPoint.p.toString(stringBuilder, definedAngles, angles);
       out.println("Currently trying\r\n" + stringBuilder.toString());
-    } catch (FileNotFoundException e) {
-      System.err.println("Spool failure!");
-      e.printStackTrace();
     }
   }
   
-  private void add(Polytope p) {
+  private synchronized void add(Polytope p) {
     int d = p.getDimensions();
     int n = (solvedByDimension.get(d) == null)? 0 : solvedByDimension.get(d).size();
     add(p, "p" + d + "_" + n);
   }
-  private void add(Polytope p, String name) {
+  private synchronized void add(Polytope p, String name) {
+    SolverEvents.CatalogAdd event = new SolverEvents.CatalogAdd();
+    event.begin();
+    event.added = addIfNew(p, name);
+    event.dimension = p.n;
+    event.facets = p.facets.size();
+    event.commit();
+  }
+  private boolean addIfNew(Polytope p, String name) {
     List<Polytope> polytopesForDimension = solvedByDimension.get(p.getDimensions());
     if (polytopesForDimension == null) {
-      polytopesForDimension = new ArrayList<Polytope>();
+      polytopesForDimension = new CopyOnWriteArrayList<Polytope>();
       solvedByDimension.put(p.getDimensions(), polytopesForDimension);
     }
-    for (Polytope known: polytopesForDimension) {
-      if (p.equivalent(known)) {
-        System.out.println("Rediscovered " + known.getName());
-        return;
+    Certificate certificate = Certificate.of(p);
+    // Equal certificates means equivalent, but confirm anyway, it's just one check
+    List<Polytope> candidates = certificate == null ? polytopesForDimension : solvedByCertificate.get(certificate);
+    if (candidates != null) {
+      for (Polytope known: candidates) {
+        if (p.equivalent(known)) {
+          statistics.rediscovered();
+          System.out.println("Rediscovered " + known.getName());
+          return false;
+        }
       }
     }
+    statistics.discovered(p.n);
     System.out.println("New polytope " + name + " discovered!");
     p.setName(name);
     p.setId(solved.size());
-    polytopesForDimension.add(p);
+    p.freeze();
     solved.add(p);
+    angleSumsByDimension.compute(p.n, (d, sums) -> (sums != null ? sums : AngleSums.EMPTY).plus(p));
+    polytopesForDimension.add(p);
     nameToPolytopeMap.put(name, p);
+    index(p, certificate);
+    if (highestSearched > 0) {
+      searchAbove(p.n);
+      // Wake up the search of the dimension above
+      notifyAll();
+    }
     System.out.println("----------------------------------------------");
     System.out.println(p);
     System.out.println("----------------------------------------------");
+    return true;
+  }
+
+  // Journals the checkpoint if it's time
+  private synchronized void checkpointed(Checkpoint checkpoint) {
+    long now = System.currentTimeMillis();
+    if (spooled < 0 || now - lastCheckpoint < checkpointInterval) {
+      return;
+    }
+    lastCheckpoint = now;
+    try {
+      journal.append(checkpoint.encode());
+    } catch (IOException e) {
+      System.err.println("Spool failure!");
+      e.printStackTrace();
+    }
   }
 
+  private void index(Polytope p, Certificate certificate) {
+    if (certificate != null) {
+      List<Polytope> polytopes = solvedByCertificate.get(certificate);
+      if (polytopes == null) {
+        polytopes = new ArrayList<Polytope>();
+        solvedByCertificate.put(certificate, polytopes);
+      }
+      polytopes.add(p);
+    }
+  }
 
   private Polytope get(String name) {
     return nameToPolytopeMap.get(name);
@@ -538,7 +739,7 @@ public class PolytopeSolver {
     }
     last = e[0].getVertex();
     final Vertex vlast = last;
-    if (e[1].containsComponent(vertex -> vertex == vlast)) {
+    if (e[1].facets.contains(vlast)) {
       last = e[0].getOtherVertex(last);
     }
     for (int i = 0; i < n; i ++) {
@@ -572,152 +773,386 @@ public class PolytopeSolver {
   //    sum of ids
   // 3) Similarily calculated order of following facet chains
   private void solve(StartingPoint startingPoint) {
+    if (pipeline) {
+      solvePipelined(startingPoint);
+      return;
+    }
     int n = startingPoint.p.n;
     while (true) {
       int theN = n;
-      startingPointsIncluding(startingPoint).forEachOrdered(
-        start -> {
-        spool(start);
-        solve(theN, start);
-        });
+      if (parallelism > 0) {
+        solveInParallel(startingPointsIncluding(startingPoint));
+      } else {
+        startingPointsIncluding(startingPoint).forEachOrdered(
+          start -> {
+          spool(start);
+          solve(theN, start);
+          statistics.startingPointDone(theN);
+          });
+      }
       n++;
       startingPoint = getStartingPoint(n);
     }
   }
 
+  // Pipelined version of the above, see DimensionSearch.
+  // Done once a dimension is done without having found a polytope to start the next one with.
+  private void solvePipelined(StartingPoint startingPoint) {
+    int n = startingPoint.p.n;
+    synchronized (this) {
+      finished = n - 1;
+      highestSearched = n;
+      searchedStartingPoints.put(n, startingPoint);
+      // Continuing in the middle of a dimension, the one above can start at once
+      searchAbove(n);
+    }
+    new DimensionSearch(n, startingPoint).run();
+    synchronized (this) {
+      while (failure == null && finished < highestSearched) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          fail(e);
+        }
+      }
+      if (failure != null) {
+        throw new IllegalStateException("Search failed", failure);
+      }
+    }
+  }
+  // Stops the search of every dimension
+  private synchronized void fail(Throwable e) {
+    if (failure == null) {
+      failure = e;
+    }
+    notifyAll();
+  }
+  // Starts searching the dimension above n unless it already is, once n has a polytope to start with
+  private synchronized void searchAbove(int n) {
+    List<Polytope> polytopes = solvedByDimension.get(n);
+    if (failure != null || n != highestSearched || polytopes == null || polytopes.isEmpty()) {
+      return;
+    }
+    highestSearched = n + 1;
+    new Thread(new DimensionSearch(n + 1, null), "Dimension " + (n + 1)).start();
+  }
+  // Search of a dimension while the dimension below may still be searched.
+  // Each round searches the starting points with at least one facet found since the round before,
+  // using facets known when the round started and no others, also for completing the rest of the polytope.
+  // A polytope is found in the round of its newest facet and no other, so a new facet costs only
+  // the combinations it is part of. Rounds go on until the dimension below is done and has nothing new.
+  private class DimensionSearch implements Runnable {
+    private final int n;
+    // Where to continue the first round, null to start at the beginning
+    private StartingPoint first;
+
+    DimensionSearch(int n, StartingPoint first) {
+      this.n = n;
+      this.first = first;
+    }
+
+    // The dimension is finished once its search has returned, which it only does after the last round,
+    // when the dimension below is finished. If it fails every other dimension is stopped.
+    @Override
+    public void run() {
+      try {
+        search();
+        synchronized (PolytopeSolver.this) {
+          if (failure == null && finished == n - 1) {
+            finished = n;
+          }
+          PolytopeSolver.this.notifyAll();
+        }
+      } catch (Stopped e) {
+        // Another dimension failed
+      } catch (RuntimeException | Error e) {
+        fail(e);
+        throw e;
+      }
+    }
+
+    private void search() {
+      // Facets with lower ids have been in a round
+      int from = 0;
+      boolean last = false;
+      while (!last) {
+        int to;
+        synchronized (PolytopeSolver.this) {
+          while (failure == null && finished < n - 1 && !found(from)) {
+            try {
+              PolytopeSolver.this.wait();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              fail(e);
+            }
+          }
+          if (failure != null) {
+            throw new Stopped();
+          }
+          last = finished >= n - 1;
+          to = solved.size();
+        }
+        if (found(from)) {
+          StartingPoint start = first != null ? first : getStartingPoint(n);
+          first = null;
+          int limit = to;
+          Stream<StartingPoint> startingPoints = startingPointsIncluding(start, from, to).map(startingPoint -> {
+            startingPoint.p.catalogLimit = limit;
+            return startingPoint;
+          });
+          if (parallelism > 0) {
+            solveInParallel(startingPoints);
+          } else {
+            startingPoints.forEachOrdered(startingPoint -> {
+              spool(startingPoint);
+              waysToSolve(copy(startingPoint.p)).forEach(p -> { add(p); spool(startingPoint); });
+              statistics.startingPointDone(n);
+            });
+          }
+        }
+        from = to;
+      }
+    }
+
+    // Whether the dimension below has polytopes with ids from from on
+    private boolean found(int from) {
+      List<Polytope> below = solvedByDimension.get(n - 1);
+      return below != null && !below.isEmpty() && below.get(below.size() - 1).id >= from;
+    }
+  }
+  // Ends the search of a dimension when the search of another one has failed, see DimensionSearch
+  private static class Stopped extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+  }
+
   private Stream<StartingPoint> startingPointsIncluding(StartingPoint firstStartingPoint) {
+    return startingPointsIncluding(firstStartingPoint, 0, Integer.MAX_VALUE);
+  }
+  // Only starting points with facets below id to, and at least one from id from.
+  // Facets are combined in order of their ids, id1 <= id2 <= ..., beginning with the ids of the first starting point.
+  private Stream<StartingPoint> startingPointsIncluding(StartingPoint firstStartingPoint, int from, int to) {
+    int n = firstStartingPoint.p.n;
+    List<Polytope> facets = solvedByDimension.get(n-1).stream().filter(facet -> facet.id < to).collect(Collectors.toList());
+    int fromIndex = 0;
+    while (fromIndex < facets.size() && facets.get(fromIndex).id < from) {
+      fromIndex++;
+    }
+    int first = fromIndex;
     // 3 - 5 facets around first corner
     return IntStream.range(firstStartingPoint.ids.length, 6)
-        .mapToObj(n -> new Integer(n))
-        .flatMap(n -> startingPointsIncluding(n,
-                                (n > firstStartingPoint.ids.length)?
-                                getStartingPoint(firstStartingPoint.p.n, n) :
-                                firstStartingPoint));
-  }
-  private Stream<StartingPoint> startingPointsIncluding(int n, StartingPoint firstStartingPoint) {
-    // n facets around first corner
-    // order so that starting point ids are increasing (or equal)
-    // A bit of ugliness because I want to use lambdas...
-    switch (n) {
-    case 3: return startingPoints3Including(firstStartingPoint);
-    case 4: return startingPoints4Including(firstStartingPoint);
-    case 5: return startingPoints5Including(firstStartingPoint);
-    default: throw new IllegalArgumentException("can only fold 3-5 polytopes around a corner");
+        .mapToObj(k -> {
+          Combinations combinations = new Combinations(facets.size(), k, first);
+          if (k == firstStartingPoint.ids.length) {
+            combinations.startAt(indexesOf(firstStartingPoint.ids, facets));
+          }
+          if (partition != null) {
+            combinations.part(partition[0], partition[1]);
+          }
+          return combinations;
+        })
+        .flatMap(combinations -> StreamSupport.stream(combinations, false))
+        .flatMap(combination -> waysToConnect(facets, combination));
+  }
+  // Indexes of the facets with the given (sorted) ids, or where they would be
+  private static int[] indexesOf(int[] ids, List<Polytope> facets) {
+    int[] result = new int[ids.length];
+    int index = 0;
+    for (int i = 0; i < ids.length; i++) {
+      while (index < facets.size() && facets.get(index).id < ids[i]) {
+        index++;
+      }
+      result[i] = index;
     }
+    return result;
   }
-  private Stream<StartingPoint> startingPoints3Including(StartingPoint firstStartingPoint) {
-    int n = firstStartingPoint.p.n;
-    return solvedByDimension.get(n-1).stream()
-      .filter(facet -> facet.id >= firstStartingPoint.ids[0])
-      .flatMap(f1 -> solvedByDimension.get(n-1).stream()
-        .filter(facet -> f1.id > firstStartingPoint.ids[0]?
-                         facet.id >= f1.id :
-                         facet.id >= firstStartingPoint.ids[1])
-        .flatMap(f2 -> solvedByDimension.get(n-1).stream()
-          .filter(facet -> (f1.id > firstStartingPoint.ids[0] ||
-                            f1.id == firstStartingPoint.ids[0] && f2.id > firstStartingPoint.ids[1])?
-                           facet.id >= f2.id :
-                           facet.id >= firstStartingPoint.ids[2])
-          .flatMap(f3 -> waysToConnect(f1.copy(), f2.copy(), f3.copy())
-       ))); 
-  }
-  private Stream<StartingPoint> startingPoints4Including(StartingPoint firstStartingPoint) {
-    int n = firstStartingPoint.p.n;
-    return solvedByDimension.get(n-1).stream()
-      .filter(facet -> facet.id >= firstStartingPoint.ids[0])
-      .flatMap(f1 -> solvedByDimension.get(n-1).stream()
-        .filter(facet -> f1.id > firstStartingPoint.ids[0]?
-                         facet.id >= f1.id :
-                         facet.id >= firstStartingPoint.ids[1])
-        .flatMap(f2 -> solvedByDimension.get(n-1).stream()
-          .filter(facet -> (f1.id > firstStartingPoint.ids[0] ||
-                            f1.id == firstStartingPoint.ids[0] && f2.id > firstStartingPoint.ids[1])?
-                           facet.id >= f2.id :
-                           facet.id >= firstStartingPoint.ids[2])
-          .flatMap(f3 -> solvedByDimension.get(n-1).stream()
-            .filter(facet -> (f1.id > firstStartingPoint.ids[0] ||
-                              f1.id == firstStartingPoint.ids[0] && f2.id > firstStartingPoint.ids[1] ||
-                              f1.id == firstStartingPoint.ids[0] && f2.id == firstStartingPoint.ids[1] && f3.id > firstStartingPoint.ids[2])?
-                              facet.id >= f3.id :
-                              facet.id >= firstStartingPoint.ids[3])
-            .flatMap(f4 -> waysToConnect(f1.copy(), f2.copy(), f3.copy(), f4.copy())
-       )))); 
-  }
-  private Stream<StartingPoint> startingPoints5Including(StartingPoint firstStartingPoint) {
-    int n = firstStartingPoint.p.n;
-    return solvedByDimension.get(n-1).stream()
-      .filter(facet -> facet.id >= firstStartingPoint.ids[0])
-      .flatMap(f1 -> solvedByDimension.get(n-1).stream()
-        .filter(facet -> f1.id > firstStartingPoint.ids[0]?
-                         facet.id >= f1.id :
-                         facet.id >= firstStartingPoint.ids[1])
-        .flatMap(f2 -> solvedByDimension.get(n-1).stream()
-          .filter(facet -> (f1.id > firstStartingPoint.ids[0] ||
-                            f1.id == firstStartingPoint.ids[0] && f2.id > firstStartingPoint.ids[1])?
-                           facet.id >= f2.id :
-                           facet.id >= firstStartingPoint.ids[2])
-          .flatMap(f3 -> solvedByDimension.get(n-1).stream()
-            .filter(facet -> (f1.id > firstStartingPoint.ids[0] ||
-                              f1.id == firstStartingPoint.ids[0] && f2.id > firstStartingPoint.ids[1] ||
-                              f1.id == firstStartingPoint.ids[0] && f2.id == firstStartingPoint.ids[1] && f3.id > firstStartingPoint.ids[2])?
-                              facet.id >= f3.id :
-                              facet.id >= firstStartingPoint.ids[3])
-            .flatMap(f4 -> solvedByDimension.get(n-1).stream()
-              .filter(facet -> (f1.id > firstStartingPoint.ids[0] ||
-                                f1.id == firstStartingPoint.ids[0] && f2.id > firstStartingPoint.ids[1] ||
-                                f1.id == firstStartingPoint.ids[0] && f2.id == firstStartingPoint.ids[1] && f3.id > firstStartingPoint.ids[2] ||
-                                f1.id == firstStartingPoint.ids[0] && f2.id == firstStartingPoint.ids[1] && f3.id == firstStartingPoint.ids[2] && f4.id > firstStartingPoint.ids[3])?
-                                facet.id >= f4.id :
-                                facet.id >= firstStartingPoint.ids[4])
-              .flatMap(f5 -> waysToConnect(f1.copy(), f2.copy(), f3.copy(), f4.copy(), f5.copy())
-       ))))); 
+  // Ways to connect copies of the facets of a combination around a corner
+  // Collected, so that the time they take shows up in the event
+  private Stream<StartingPoint> waysToConnect(List<Polytope> facets, int[] combination) {
+    SolverEvents.StartingPoints event = new SolverEvents.StartingPoints();
+    event.begin();
+    Polytope[] f = new Polytope[combination.length];
+    for (int i = 0; i < f.length; i++) {
+      f[i] = facets.get(combination[i]).copy();
+    }
+    Stream<StartingPoint> ways;
+    switch (f.length) {
+    case 3: ways = waysToConnect(f[0], f[1], f[2]); break;
+    case 4: ways = waysToConnect(f[0], f[1], f[2], f[3]); break;
+    case 5: ways = waysToConnect(f[0], f[1], f[2], f[3], f[4]); break;
+    default: throw new IllegalArgumentException("can only fold 3-5 polytopes around a corner");
+    }
+    List<StartingPoint> result = ways.collect(Collectors.toList());
+    event.dimension = f[0].n + 1;
+    event.facets = f.length;
+    event.ways = result.size();
+    event.commit();
+    return result.stream();
   }
 
   private void solve(int n, StartingPoint startingPoint) {
-    waysToSolve(startingPoint.p).forEach(p -> { add(p); spool(startingPoint); });
+    // The search modifies the polytope it's given, keep the starting point intact for spooling
+    WorkInProgress start = copy(startingPoint.p);
+    Certificate certificate = Certificate.ofPartial(start);
+    if (certificate != null) {
+      UUID root = certificate.digest();
+      if (resumeFrom != null && resumeFrom.getRoot().equals(root)) {
+        System.out.println("Resuming search from checkpoint");
+        checkpoint = resumeFrom;
+        resumeFrom = null;
+      } else {
+        checkpoint = new Checkpoint(root);
+      }
+    }
+    waysToSolve(start, checkpoint).forEach(p -> { add(p); spool(startingPoint); });
+    checkpoint = null;
+  }
+  
+  // Parallel version of the above.
+  // Every starting point (and the first few levels of corners below it) is solved as a separate fork/join task,
+  // but the results are merged into the catalog in the same order as the sequential search would find them,
+  // so names and ids do not depend on the number of threads.
+  private void solveInParallel(Stream<StartingPoint> startingPoints) {
+    synchronized (this) {
+      if (pool == null) {
+        pool = new ForkJoinPool(parallelism);
+      }
+    }
+    // Don't run too far ahead of the merge, every scheduled starting point holds on to its results
+    int window = 4 * parallelism;
+    Deque<StartingPoint> scheduled = new ArrayDeque<StartingPoint>();
+    Deque<ForkJoinTask<List<WorkInProgress>>> tasks = new ArrayDeque<ForkJoinTask<List<WorkInProgress>>>();
+    // Pushed rather than iterated, an iterator over flatMap generates whole sub streams before returning the first
+    startingPoints.forEachOrdered(start -> {
+      scheduled.addLast(start);
+      tasks.addLast(pool.submit(new SolveTask(copy(start.p), 0)));
+      if (scheduled.size() >= window) {
+        merge(scheduled.removeFirst(), tasks.removeFirst());
+      }
+    });
+    while (!scheduled.isEmpty()) {
+      merge(scheduled.removeFirst(), tasks.removeFirst());
+    }
+  }
+  private void merge(StartingPoint start, ForkJoinTask<List<WorkInProgress>> task) {
+    List<WorkInProgress> solutions = task.join();
+    spool(start);
+    for (WorkInProgress p: solutions) {
+      add(p);
+      spool(start);
+    }
+    statistics.startingPointDone(start.p.n);
+  }
+  
+  private class SolveTask extends RecursiveTask<List<WorkInProgress>> {
+    private static final long serialVersionUID = 1L;
+    private final WorkInProgress p;
+    private final int depth;
+    
+    SolveTask(WorkInProgress p, int depth) {
+      this.p = p;
+      this.depth = depth;
+    }
+    
+    @Override
+    protected List<WorkInProgress> compute() {
+      if (depth >= forkDepth) {
+        return waysToSolve(p).collect(Collectors.toList());
+      }
+      Optional<Polytope> unfinishedCorner = unfinishedCorner(p);
+      if (!unfinishedCorner.isPresent()) {
+        return waysToSolve(p).collect(Collectors.toList());
+      }
+      // The search backtracks p in place, so each way to finish the corner is copied
+      // before it can be searched by itself
+      List<SolveTask> subtasks = waysToFinishCorner(p, unfinishedCorner.get())
+          .map(wip -> new SolveTask(copy(wip), depth + 1))
+          .collect(Collectors.toList());
+      invokeAll(subtasks);
+      List<WorkInProgress> result = new ArrayList<WorkInProgress>();
+      for (SolveTask subtask: subtasks) {
+        result.addAll(subtask.join());
+      }
+      return result;
+    }
   }
   // Ways to complete a partially constructed polytope
-  // General rule, whenever we return a stream of options based on a initial value,
-  // we should return copies of the objects
+  // The partial polytope is modified in place while searching, every modification is recorded
+  // in its trail and undone when the search backtracks (see DepthFirstSearch).
+  // Only finished polytopes are returned as copies.
   // Problem: If we just attack a random unfinished vertex we WILL get into the
   // situation that we are building infinite links of partially connected chains.
   // We must order the unsolved vertexes to avoid this.
   // Start with vertexes around first facet chain.
   // For each chain added, add new vertexes LAST.
   private Stream<WorkInProgress> waysToSolve(WorkInProgress p) {
-    
-    // Select a random unfinished corner 
+    return waysToSolve(p, null);
+  }
+  // Skipping what the checkpoint has as done, and adding to it
+  private Stream<WorkInProgress> waysToSolve(WorkInProgress p, Checkpoint checkpoint) {
+    return DepthFirstSearch.stream(p.trail, solveFrame(p, checkpoint, 0, checkpoint == null ? null : checkpoint.getRoot()));
+  }
+  // state is the digest of p as it is now, if it is to be checkpointed
+  // Each state reached after finishing a corner is looked up in the checkpoint and the transposition table
+  private DepthFirstSearch.Frame<WorkInProgress> solveFrame(WorkInProgress p, Checkpoint checkpoint, int depth, UUID state) {
+    return DepthFirstSearch.once(() -> {
+      statistics.node(p.n);
+      // Select a random unfinished corner 
+      Optional<Polytope> unfinishedCorner = unfinishedCorner(p);
+      // Give up if p can't become a polytope
+      if (!p.isFeasible(!unfinishedCorner.isPresent())) {
+        statistics.infeasible();
+        return null;
+      }
+      // Done if there are no unfinished corners
+      if (!unfinishedCorner.isPresent()) {
+        WorkInProgress result = copy(p);
+        SolverEvents.SolveAngles event = new SolverEvents.SolveAngles();
+        event.begin();
+        boolean solved = result.solveAngles();
+        event.dimension = result.n;
+        event.facets = result.facets.size();
+        event.solved = solved;
+        event.commit();
+        return solved ? DepthFirstSearch.result(result) : null;
+      }
+      // and build a facet chain around it
+      // Then go on until done
+      Checkpoint below = state != null && depth < checkpointDepth ? checkpoint : null;
+      return finishCornerFrame(p, unfinishedCorner.get(), () -> below != null || transpositions != null ?
+          new StateFrame(p, below, depth + 1, state) :
+          solveFrame(p, null, depth + 1, null));
+    });
+  }
+  
+  // Counted, see SolverStatistics
+  private WorkInProgress copy(WorkInProgress p) {
+    statistics.copied(p.facets.size());
+    return p.copyWiP();
+  }
+
+  private Optional<Polytope> unfinishedCorner(WorkInProgress p) {
     Set<Polytope> finishedCorners = p.finishedCorners.keySet();
-    Optional<Polytope> unfinishedCorner = p.facets.stream().flatMap(
+    return p.facets.stream().flatMap(
         facet -> facet.facets.stream().flatMap(
             ridge -> ridge.facets.stream()))
         .filter(corner -> !finishedCorners.contains(corner)).findAny();
-    // Done if there are no unfinished corners
-    if (!unfinishedCorner.isPresent()) {
-      if (p.solveAngles()) {
-        return Stream.of(p);
-      } else {
-        return Stream.empty();
-      }
-    }
-    // and build a facet chain around it
-    return waysToSolve(p, unfinishedCorner.get())
-    // Then recurse until done
-        .flatMap(wip -> waysToSolve(wip));
   }
   
   // Ways to complete one incomplete corner of a partially constructed polytope
   // while respecting neighboring facet chains
-  private Stream<WorkInProgress> waysToSolve(WorkInProgress p, Polytope corner) {
-    //p = p.copyWiP();
-
+  // Each result is p itself with the corner added to the finished corners, until the next result is requested
+  private Stream<WorkInProgress> waysToFinishCorner(WorkInProgress p, Polytope corner) {
+    return DepthFirstSearch.stream(p.trail,
+        DepthFirstSearch.once(() -> finishCornerFrame(p, corner, () -> DepthFirstSearch.result(p))));
+  }
+  // Search for ways to finish the corner, continuing with then for each of them. null if there are none
+  private DepthFirstSearch.Frame<WorkInProgress> finishCornerFrame(WorkInProgress p, Polytope corner,
+      Supplier<DepthFirstSearch.Frame<WorkInProgress>> then) {
     // Create a FacetChain based on already existing facets
     Map<Polytope, Set<Polytope>> ridgeToFacetMap = p.getRidgeToFacetMap();
     
-    Set<Polytope> neighborRidges = p.facets.stream()
-      .flatMap(facet -> facet.facets.stream()
-        .filter(ridge -> ridge.facets.contains(corner)))
-       .collect(Collectors.toSet());
+    Set<Polytope> neighborRidges = p.getCornerToRidgeMap().get(corner);
     
     // If algorithm works as supposed, neighboring facets will form a partial, connected facet chain.
     Map<Polytope, List<Polytope>> facetToFacetMap = new HashMap<Polytope, List<Polytope>>();
@@ -781,39 +1216,40 @@ public class PolytopeSolver {
         ridges.retainAll(facet.facets);
         if (!facetChain.add(ridges.iterator().next(), facet)) {
           // More than 2PI around this corner already, abort and backtrack
-          return Stream.empty();
+          statistics.facetRejected();
+          return null;
         }
         nextToLastFacet = lastFacet;
         lastFacet = facet;
       }
     }
-    // Problem due to not enough immutability!
-    // Completing a facetChain WILL modify the polytope it's created from (equating edges) ruining backtracking!
+    // Completing a facetChain WILL modify the polytope it's created from (equating edges)
     // Example: start with fan of 3 triangles.
     // Try adding another chain of 3 triangles
     // After some steps, tetrahedron, and fourth triangle has had it's edges equated
     // backtrack, extend to chain of four triangles ->
-    // Fourth triangle will be attached to an edge that's already closed!
-    // Solution: add link from facetChain to WorkInProgress, and copy whole workInProgress whenever a facetChain is closed
+    // Fourth triangle must not be attached to an edge that's already closed!
+    // Every modification goes on the trail of p and is undone before backtracking
     
     facetChain.getWorkInProgress().check();
-    return waysToComplete(facetChain).flatMap(
-        chain -> {
-        //Polytope pDbg = p;
-        Map<Polytope, Polytope> equivalences = new HashMap<Polytope, Polytope>();
-//        WorkInProgress result = p.copyWiP(equivalences);
-        FacetChain chainCopy = chain.copyWorkInProgress(equivalences);
-        WorkInProgress result = chainCopy.getWorkInProgress();
-//        chainCopy.close();
-        result.addFinishedCorner(chainCopy);
-        result.facets.addAll(chainCopy.facets);
-        result.coalesceRidges();
-        result.check();
+    return new CompleteFrame(facetChain, () -> {
+        SolverEvents.Corner event = new SolverEvents.Corner();
+        event.begin();
+        p.addFinishedCorner(facetChain);
+        for (Polytope facet: facetChain.facets) {
+          p.add(facet);
+        }
+        p.coalesceRidges();
+        p.check();
+        event.dimension = p.n;
+        event.facets = p.facets.size();
+        event.chainFacets = facetChain.facets.size();
+        event.commit();
         System.out.println("Finished a corner... Current finished corners:");
-        for (Polytope corner2: result.finishedCorners.keySet()) {
-          System.out.println(result.finishedCorners.get(corner2));
+        for (Polytope corner2: p.finishedCorners.keySet()) {
+          System.out.println(p.finishedCorners.get(corner2));
         }
-        return waysToSolve(result);
+        return then.get();
     });
   }
  
@@ -830,54 +1266,132 @@ public class PolytopeSolver {
     return null;
   }
 
-  private Stream<FacetChain> waysToComplete(FacetChain facetChain) {
-    Polytope facet = facetChain.facets.get(facetChain.facets.size() - 1);
-    Polytope firstRidge = facetChain.firstRidge();
-    Polytope lastRidge = facetChain.lastRidge();
-    if (firstRidge == lastRidge) {
-      // Already completed
-      facetChain.getWorkInProgress().check();
-      return Stream.of(facetChain);
-    } else if (firstRidge.facets.equals(lastRidge.facets)) {
-      // Unconnected but equivalent. Equate.
-      Map<Polytope, Polytope> equivalences = new HashMap<Polytope, Polytope>();
-      FacetChain result1 = facetChain.copyWorkInProgress(equivalences);
-      Polytope newFirstRidge = equivalences.get(firstRidge);
-      Polytope newLastRidge = equivalences.get(lastRidge);
-      equivalences = new HashMap<Polytope, Polytope>();
-      equivalences.put(newLastRidge, newFirstRidge);
-      for (Polytope facet1: result1.facets) {
-        facet1.equate(equivalences);
+  // Ways to complete a facet chain: close it, or add another facet and go on.
+  // Each completed chain continues with then
+  private class CompleteFrame extends DepthFirstSearch.Frame<WorkInProgress> {
+    private final FacetChain facetChain;
+    private final Supplier<DepthFirstSearch.Frame<WorkInProgress>> then;
+    private final Polytope facet;
+    private final Polytope lastRidge;
+    // Catalog facets that could be added, null until the first alternative has been tried
+    private Iterator<Polytope> newFacets;
+    private Polytope newFacet;
+    private Iterator<Equivalences> ways;
+
+    CompleteFrame(FacetChain facetChain, Supplier<DepthFirstSearch.Frame<WorkInProgress>> then) {
+      this.facetChain = facetChain;
+      this.then = then;
+      facet = facetChain.facets.get(facetChain.facets.size() - 1);
+      lastRidge = facetChain.lastRidge();
+    }
+
+    @Override
+    protected DepthFirstSearch.Frame<WorkInProgress> next() {
+      if (newFacets == null) {
+        newFacets = Collections.emptyIterator();
+        Polytope firstRidge = facetChain.firstRidge();
+        if (firstRidge == lastRidge) {
+          // Already completed
+          facetChain.getWorkInProgress().check();
+          return then.get();
+        } else if (firstRidge.facets.equals(lastRidge.facets)) {
+          // Unconnected but equivalent. Equate.
+          Map<Polytope, Polytope> equivalences = new HashMap<Polytope, Polytope>();
+          equivalences.put(lastRidge, firstRidge);
+          for (Polytope facet1: facetChain.facets) {
+            facet1.equate(equivalences, facetChain.getWorkInProgress().trail);
+          }
+          facetChain.getWorkInProgress().check();
+          return then.get();
+        }
+        newFacets = waysToSelect1(facet.n, facetChain).iterator();
+        // First try closing the chain as it is
+        SolverEvents.Close event = new SolverEvents.Close();
+        event.begin();
+        boolean closed = facetChain.close();
+        event.dimension = facetChain.getWorkInProgress().n;
+        event.chainFacets = facetChain.facets.size();
+        event.closed = closed;
+        event.commit();
+        if (closed) {
+          return then.get();
+        }
+        statistics.closeFailed();
+        undo();
+      }
+      while (true) {
+        while (ways == null || !ways.hasNext()) {
+          if (!newFacets.hasNext()) {
+            return null;
+          }
+          newFacet = newFacets.next();
+          Polytope prototype = newFacet;
+          // Only ways that put an angle small enough at the corner
+          ways = facet.waysToConnect(newFacet, lastRidge)
+              .filter(equivalences -> canClose(facetChain, prototype.getAngle(equivalences.p1p2.get(facetChain.corner))))
+              .iterator();
+        }
+        Equivalences equivalences = ways.next();
+        // copy adds to the replacement map, don't let it touch the equivalences
+        Polytope newFacetCopy = newFacet.copy(new HashMap<Polytope, Polytope>(equivalences.p2p1));
+        if (!facetChain.add(lastRidge, newFacetCopy)) {
+          statistics.facetRejected();
+          undo();
+          continue;
+        }
+        facetChain.getWorkInProgress().check();
+        return new CompleteFrame(facetChain, then);
+      }
+    }
+  }
+  // Searches below p unless the checkpoint or the transposition table has it as done, and has it as done once it is.
+  // The checkpoint may be null.
+  private class StateFrame extends DepthFirstSearch.Frame<WorkInProgress> {
+    private final WorkInProgress p;
+    private final Checkpoint checkpoint;
+    private final int depth;
+    private final UUID parent;
+    private UUID state;
+    private boolean searched;
+
+    StateFrame(WorkInProgress p, Checkpoint checkpoint, int depth, UUID parent) {
+      this.p = p;
+      this.checkpoint = checkpoint;
+      this.depth = depth;
+      this.parent = parent;
+    }
+
+    @Override
+    protected DepthFirstSearch.Frame<WorkInProgress> next() {
+      if (!searched) {
+        searched = true;
+        Certificate certificate = Certificate.ofPartial(p);
+        if (certificate == null) {
+          return solveFrame(p, null, depth, null);
+        }
+        state = certificate.digest();
+        if (checkpoint != null && checkpoint.isDone(parent, state)) {
+          statistics.checkpointHit();
+          return null;
+        }
+        if (transpositions != null && transpositions.contains(state)) {
+          statistics.transpositionHit();
+          return null;
+        }
+        return solveFrame(p, checkpoint, depth, state);
       }
-      result1.getWorkInProgress().check();
-      return Stream.of(result1);
-    }
-    FacetChain result1 = facetChain.copyWorkInProgress();
-    return Stream.concat(
-        result1.close()? Stream.of(result1) : Stream.empty(),
-        waysToSelect1(facet.n).flatMap(
-            newFacet -> facet.waysToConnect(newFacet, lastRidge).flatMap(
-                equivalences -> {
-//                  for (lastRidge.facets)
-//                  if (facetChain.angularSum + )
-                  Polytope facetDbg = facet;
-                  Polytope newFacetDbg = newFacet;
-                  Polytope lastRidgeDbg = lastRidge;
-                  FacetChain facetChainDbg = facetChain;
-                  Map<Polytope, Polytope> replacements = new HashMap<Polytope, Polytope>();
-                  FacetChain result = facetChain.copyWorkInProgress(replacements);
-                  Polytope newFacetCopy = newFacet.copy(compose(equivalences.p2p1, replacements));
-//                  newFacetCopy.equate(compose(equivalences.p2p1, replacements));
-//                  Equivalences orgEqv = new Equivalences(equivalences);
-//                  Polytope newFacetCopy = newFacet.copy(equivalences.p2p1);
-//                  result.add(lastRidge, newFacetCopy);
-                  if (!result.add(replacements.get(lastRidge), newFacetCopy)) {
-                    return Stream.empty();
-                  }
-//                  return result;
-                  result.getWorkInProgress().check();
-                  return waysToComplete(result);
-                })));
+      // Everything below has been searched
+      if (state != null) {
+        if (transpositions != null) {
+          transpositions.add(state);
+        }
+        if (checkpoint != null) {
+          checkpoint.done(parent, state);
+          checkpointed(checkpoint);
+        }
+      }
+      return null;
+    }
   }
   private static <Key, Value> Map<Value, Key> invert(Map<Key, Value> map) {
     Map<Value, Key> result = new HashMap<Value, Key>();
@@ -898,8 +1412,39 @@ public class PolytopeSolver {
     return result;
   }
 
-  private Stream<Polytope> waysToSelect1(int n) {
-    return solvedByDimension.get(n).stream();
+  // Catalog polytopes that could be added to the facet chain, those that have no angle small enough
+  // to fit in what is left of the full turn around the corner are skipped before trying to connect them
+  private Stream<Polytope> waysToSelect1(int n, FacetChain facetChain) {
+    int limit = facetChain.getWorkInProgress().catalogLimit;
+    return solvedByDimension.get(n).stream().filter(p -> p.id < limit && fits(facetChain, p.getSmallestAngle()));
+  }
+  // Whether a facet with the angle at the corner leaves room for the facets the chain needs to close,
+  // at least three in all
+  private boolean fits(FacetChain facetChain, double angle) {
+    return counted(angleSums(facetChain).fits(facetChain.angularSum + angle, more(facetChain)));
+  }
+  // Whether the chain can still close with a facet with the angle at the corner, see AngleSums.
+  // Only for the angle a facet actually puts at the corner, a larger one may close a chain a smaller one can't.
+  private boolean canClose(FacetChain facetChain, Angle angle) {
+    if (angle == null || angle instanceof Angle.Unknown) {
+      return true;
+    }
+    double a = angle.getAngle();
+    return counted(angleSums(facetChain).canClose(facetChain.angularSum + a, Math.max(facetChain.largestAngle(), a),
+        more(facetChain)));
+  }
+  private AngleSums angleSums(FacetChain facetChain) {
+    return angleSumsByDimension.get(facetChain.facets.get(0).n);
+  }
+  private static int more(FacetChain facetChain) {
+    return Math.max(0, 2 - facetChain.facets.size());
+  }
+  // Both catalog polytopes and ways of connecting them are pruned by their angle, and counted
+  private boolean counted(boolean fits) {
+    if (!fits) {
+      statistics.anglePruned();
+    }
+    return fits;
   }
   
 //  private void fakeSolve() {
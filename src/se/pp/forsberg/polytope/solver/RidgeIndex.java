@@ -0,0 +1,123 @@
+package se.pp.forsberg.polytope.solver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Ridge to facet and corner to ridge incidences of a polytope, kept up to date incrementally.
+// Facet collections are persistent, so a face whose facets reference is the same as when it was
+// last indexed is unchanged. update() compares references and only touches the faces that changed,
+// whether that was through add(), equate() or the trail undoing either.
+// The maps handed out are persistent snapshots, later updates do not affect them.
+class RidgeIndex {
+  // Never updated
+  static final RidgeIndex EMPTY = new RidgeIndex();
+
+  private PersistentSet<Polytope> facets = PersistentSet.empty();
+  // Facets and ridges as they were when last indexed
+  private final Map<Polytope, PersistentSet<Polytope>> ridgesOfFacet = new HashMap<Polytope, PersistentSet<Polytope>>();
+  private final Map<Polytope, PersistentSet<Polytope>> cornersOfRidge = new HashMap<Polytope, PersistentSet<Polytope>>();
+  // Values are PersistentSets
+  private PersistentMap<Polytope, Set<Polytope>> ridgeToFacets = PersistentMap.empty();
+  private PersistentMap<Polytope, Set<Polytope>> cornerToRidges = PersistentMap.empty();
+
+  Map<Polytope, Set<Polytope>> ridgeToFacets() {
+    return ridgeToFacets;
+  }
+  Map<Polytope, Set<Polytope>> cornerToRidges() {
+    return cornerToRidges;
+  }
+
+  void update(PersistentSet<Polytope> current) {
+    List<Polytope> removedRidges = new ArrayList<Polytope>();
+    if (current != facets) {
+      for (Polytope facet: facets) {
+        if (!current.contains(facet)) {
+          PersistentSet<Polytope> ridges = ridgesOfFacet.remove(facet);
+          for (Polytope ridge: ridges) {
+            ridgeToFacets = remove(ridgeToFacets, ridge, facet, removedRidges);
+          }
+        }
+      }
+      facets = current;
+    }
+    for (Polytope facet: current) {
+      PersistentSet<Polytope> oldRidges = ridgesOfFacet.get(facet);
+      PersistentSet<Polytope> newRidges = facet.facets;
+      if (oldRidges == newRidges) {
+        continue;
+      }
+      if (oldRidges == null) {
+        oldRidges = PersistentSet.empty();
+      }
+      for (Polytope ridge: oldRidges) {
+        if (!newRidges.contains(ridge)) {
+          ridgeToFacets = remove(ridgeToFacets, ridge, facet, removedRidges);
+        }
+      }
+      for (Polytope ridge: newRidges) {
+        if (!oldRidges.contains(ridge)) {
+          ridgeToFacets = add(ridgeToFacets, ridge, facet);
+        }
+      }
+      ridgesOfFacet.put(facet, newRidges);
+    }
+    for (Polytope ridge: removedRidges) {
+      if (ridgeToFacets.containsKey(ridge)) {
+        continue;
+      }
+      PersistentSet<Polytope> corners = cornersOfRidge.remove(ridge);
+      if (corners != null) {
+        for (Polytope corner: corners) {
+          cornerToRidges = remove(cornerToRidges, corner, ridge, null);
+        }
+      }
+    }
+    for (Polytope ridge: ridgeToFacets.keySet()) {
+      PersistentSet<Polytope> oldCorners = cornersOfRidge.get(ridge);
+      PersistentSet<Polytope> newCorners = ridge.facets;
+      if (oldCorners == newCorners) {
+        continue;
+      }
+      if (oldCorners == null) {
+        oldCorners = PersistentSet.empty();
+      }
+      for (Polytope corner: oldCorners) {
+        if (!newCorners.contains(corner)) {
+          cornerToRidges = remove(cornerToRidges, corner, ridge, null);
+        }
+      }
+      for (Polytope corner: newCorners) {
+        if (!oldCorners.contains(corner)) {
+          cornerToRidges = add(cornerToRidges, corner, ridge);
+        }
+      }
+      cornersOfRidge.put(ridge, newCorners);
+    }
+  }
+
+  private static PersistentMap<Polytope, Set<Polytope>> add(PersistentMap<Polytope, Set<Polytope>> map, Polytope key, Polytope value) {
+    PersistentSet<Polytope> values = (PersistentSet<Polytope>) map.get(key);
+    if (values == null) {
+      values = PersistentSet.empty();
+    }
+    return map.plus(key, values.plus(value));
+  }
+  // Keys left without values are dropped and added to removedKeys, if given
+  private static PersistentMap<Polytope, Set<Polytope>> remove(PersistentMap<Polytope, Set<Polytope>> map, Polytope key, Polytope value, List<Polytope> removedKeys) {
+    PersistentSet<Polytope> values = (PersistentSet<Polytope>) map.get(key);
+    if (values == null) {
+      return map;
+    }
+    values = values.minus(value);
+    if (!values.isEmpty()) {
+      return map.plus(key, values);
+    }
+    if (removedKeys != null) {
+      removedKeys.add(key);
+    }
+    return map.minus(key);
+  }
+}
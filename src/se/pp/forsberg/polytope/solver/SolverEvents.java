@@ -0,0 +1,92 @@
+package se.pp.forsberg.polytope.solver;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// Flight Recorder events for the phases of the search, recorded when a recording is started
+// (-XX:StartFlightRecording or jcmd JFR.start) and close to free otherwise.
+// Each has the dimension searched and the number of facets involved, and lasts as long as the phase.
+final class SolverEvents {
+  private SolverEvents() {
+  }
+
+  @Name("se.pp.forsberg.polytope.StartingPoints")
+  @Label("Starting Points")
+  @Category({ "Polytope", "Solver" })
+  @Description("Ways to connect one combination of facets around a first corner")
+  static class StartingPoints extends Event {
+    @Label("Dimension")
+    int dimension;
+    @Label("Facets")
+    int facets;
+    @Label("Ways")
+    int ways;
+  }
+
+  @Name("se.pp.forsberg.polytope.Corner")
+  @Label("Corner")
+  @Category({ "Polytope", "Solver" })
+  @Description("Adding a completed facet chain to a partial polytope and connecting its ridges")
+  static class Corner extends Event {
+    @Label("Dimension")
+    int dimension;
+    @Label("Facets")
+    int facets;
+    @Label("Chain Facets")
+    int chainFacets;
+  }
+
+  @Name("se.pp.forsberg.polytope.Close")
+  @Label("Close Facet Chain")
+  @Category({ "Polytope", "Solver" })
+  static class Close extends Event {
+    @Label("Dimension")
+    int dimension;
+    @Label("Chain Facets")
+    int chainFacets;
+    @Label("Closed")
+    boolean closed;
+  }
+
+  @Name("se.pp.forsberg.polytope.SolveAngles")
+  @Label("Solve Angles")
+  @Category({ "Polytope", "Solver" })
+  @Description("Dihedral angles of a finished polytope")
+  static class SolveAngles extends Event {
+    @Label("Dimension")
+    int dimension;
+    @Label("Facets")
+    int facets;
+    @Label("Solved")
+    boolean solved;
+  }
+
+  @Name("se.pp.forsberg.polytope.CatalogAdd")
+  @Label("Catalog Add")
+  @Category({ "Polytope", "Catalog" })
+  @Description("Looking a found polytope up in the catalog and adding it if it is new")
+  static class CatalogAdd extends Event {
+    @Label("Dimension")
+    int dimension;
+    @Label("Facets")
+    int facets;
+    @Label("New")
+    boolean added;
+  }
+
+  @Name("se.pp.forsberg.polytope.Spool")
+  @Label("Spool")
+  @Category({ "Polytope", "Catalog" })
+  @Description("Journaling new polytopes and the starting point, or writing a new catalog")
+  static class Spool extends Event {
+    @Label("Dimension")
+    int dimension;
+    @Label("Polytopes")
+    int polytopes;
+    @Label("Compacted")
+    boolean compacted;
+  }
+}
@@ -0,0 +1,206 @@
+package se.pp.forsberg.polytope.solver;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Counters kept by the search, cheap enough to update from every thread at every step.
+// Registered with the platform MBean server under NAME, and appended to a file as one line
+// per snapshot, so a slow run can be looked at while it runs and afterwards.
+class SolverStatistics implements SolverStatisticsMXBean {
+  static final String NAME = "se.pp.forsberg.polytope.solver:type=SolverStatistics";
+  private static final int buckets = 16;
+
+  private final long started = System.currentTimeMillis();
+  private final Map<Integer, LongAdder> startingPoints = new ConcurrentHashMap<Integer, LongAdder>();
+  private final Map<Integer, LongAdder> nodes = new ConcurrentHashMap<Integer, LongAdder>();
+  private final Map<Integer, LongAdder> discoveries = new ConcurrentHashMap<Integer, LongAdder>();
+  private final LongAdder infeasible = new LongAdder();
+  private final LongAdder transpositionHits = new LongAdder();
+  private final LongAdder checkpointHits = new LongAdder();
+  private final LongAdder facetRejections = new LongAdder();
+  private final LongAdder anglePrunes = new LongAdder();
+  private final LongAdder closeFailures = new LongAdder();
+  private final LongAdder copies = new LongAdder();
+  private final AtomicLongArray copySizes = new AtomicLongArray(buckets);
+  private final LongAdder rediscoveries = new LongAdder();
+  private Timer timer;
+
+  // Registers the bean and appends a snapshot to file every interval milliseconds, never if interval is 0
+  synchronized void start(File file, long interval) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(NAME));
+    } catch (JMException e) {
+      System.err.println("Statistics not registered: " + e);
+    }
+    if (interval <= 0 || timer != null) {
+      return;
+    }
+    timer = new Timer("Statistics", true);
+    timer.scheduleAtFixedRate(new TimerTask() {
+      @Override
+      public void run() {
+        try (Writer out = new FileWriter(file, true)) {
+          out.write(new Date() + " " + SolverStatistics.this + "\r\n");
+        } catch (IOException e) {
+          System.err.println("Statistics failure!");
+          e.printStackTrace();
+        }
+      }
+    }, interval, interval);
+  }
+
+  void startingPointDone(int n) {
+    increment(startingPoints, n);
+  }
+  void node(int n) {
+    increment(nodes, n);
+  }
+  void infeasible() {
+    infeasible.increment();
+  }
+  void transpositionHit() {
+    transpositionHits.increment();
+  }
+  void checkpointHit() {
+    checkpointHits.increment();
+  }
+  void facetRejected() {
+    facetRejections.increment();
+  }
+  void anglePruned() {
+    anglePrunes.increment();
+  }
+  void closeFailed() {
+    closeFailures.increment();
+  }
+  void copied(int facets) {
+    copies.increment();
+    int bucket = facets < 2 ? 0 : 31 - Integer.numberOfLeadingZeros(facets);
+    copySizes.incrementAndGet(Math.min(bucket, buckets - 1));
+  }
+  void discovered(int n) {
+    increment(discoveries, n);
+  }
+  void rediscovered() {
+    rediscoveries.increment();
+  }
+
+  private static void increment(Map<Integer, LongAdder> counters, int n) {
+    counters.computeIfAbsent(n, key -> new LongAdder()).increment();
+  }
+  private static Map<Integer, Long> values(Map<Integer, LongAdder> counters) {
+    Map<Integer, Long> result = new TreeMap<Integer, Long>();
+    for (Map.Entry<Integer, LongAdder> counter: counters.entrySet()) {
+      result.put(counter.getKey(), counter.getValue().sum());
+    }
+    return result;
+  }
+  private double perSecond(long count) {
+    return count * 1000.0 / Math.max(1, getUptime());
+  }
+
+  @Override
+  public long getUptime() {
+    return System.currentTimeMillis() - started;
+  }
+  @Override
+  public Map<Integer, Long> getStartingPointsDone() {
+    return values(startingPoints);
+  }
+  @Override
+  public Map<Integer, Double> getStartingPointsPerSecond() {
+    Map<Integer, Double> result = new TreeMap<Integer, Double>();
+    for (Map.Entry<Integer, Long> done: getStartingPointsDone().entrySet()) {
+      result.put(done.getKey(), perSecond(done.getValue()));
+    }
+    return result;
+  }
+  @Override
+  public Map<Integer, Long> getNodesExpanded() {
+    return values(nodes);
+  }
+  @Override
+  public double getNodesPerSecond() {
+    long sum = 0;
+    for (LongAdder counter: nodes.values()) {
+      sum += counter.sum();
+    }
+    return perSecond(sum);
+  }
+  @Override
+  public long getInfeasible() {
+    return infeasible.sum();
+  }
+  @Override
+  public long getTranspositionHits() {
+    return transpositionHits.sum();
+  }
+  @Override
+  public long getCheckpointHits() {
+    return checkpointHits.sum();
+  }
+  @Override
+  public long getFacetRejections() {
+    return facetRejections.sum();
+  }
+  @Override
+  public long getAnglePrunes() {
+    return anglePrunes.sum();
+  }
+  @Override
+  public long getCloseFailures() {
+    return closeFailures.sum();
+  }
+  @Override
+  public long getCopies() {
+    return copies.sum();
+  }
+  @Override
+  public long[] getCopySizes() {
+    long[] result = new long[buckets];
+    for (int i = 0; i < buckets; i++) {
+      result[i] = copySizes.get(i);
+    }
+    return result;
+  }
+  @Override
+  public Map<Integer, Long> getNewPolytopes() {
+    return values(discoveries);
+  }
+  @Override
+  public long getRediscoveries() {
+    return rediscoveries.sum();
+  }
+
+  @Override
+  public String toString() {
+    long[] sizes = getCopySizes();
+    int last = sizes.length;
+    while (last > 1 && sizes[last - 1] == 0) {
+      last--;
+    }
+    StringBuilder copySizes = new StringBuilder();
+    for (int i = 0; i < last; i++) {
+      copySizes.append(i == 0 ? "" : ",").append(sizes[i]);
+    }
+    return String.format("uptime=%d startingPoints=%s nodes=%s nodesPerSecond=%.1f infeasible=%d transpositionHits=%d "
+        + "checkpointHits=%d facetRejections=%d anglePrunes=%d closeFailures=%d copies=%d copySizes=[%s] new=%s rediscoveries=%d",
+        getUptime(), getStartingPointsDone(), getNodesExpanded(), getNodesPerSecond(), getInfeasible(),
+        getTranspositionHits(), getCheckpointHits(), getFacetRejections(), getAnglePrunes(),
+        getCloseFailures(), getCopies(), copySizes, getNewPolytopes(), getRediscoveries());
+  }
+}
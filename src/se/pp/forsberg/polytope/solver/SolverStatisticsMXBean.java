@@ -0,0 +1,34 @@
+package se.pp.forsberg.polytope.solver;
+
+import java.util.Map;
+
+// What the search has done since the solver started, see SolverStatistics.
+// Maps are keyed by the dimension searched.
+public interface SolverStatisticsMXBean {
+  // Milliseconds
+  long getUptime();
+
+  Map<Integer, Long> getStartingPointsDone();
+  Map<Integer, Double> getStartingPointsPerSecond();
+  // Partial polytopes the search has reached
+  Map<Integer, Long> getNodesExpanded();
+  double getNodesPerSecond();
+  // Partial polytopes given up because they break Descartes or Euler
+  long getInfeasible();
+  // Partial polytopes skipped because they had been searched before
+  long getTranspositionHits();
+  long getCheckpointHits();
+  // Facets that did not fit around a corner, and facet chains that could not be closed as they were
+  long getFacetRejections();
+  // Facets, and ways of connecting them, skipped before trying because their angle leaves no room to close the chain
+  long getAnglePrunes();
+  long getCloseFailures();
+
+  long getCopies();
+  // Copies of partial polytopes by number of facets, bucket i has those with 2^i to 2^(i+1)-1 facets,
+  // bucket 0 those with fewer than two
+  long[] getCopySizes();
+
+  Map<Integer, Long> getNewPolytopes();
+  long getRediscoveries();
+}
@@ -0,0 +1,25 @@
+package se.pp.forsberg.polytope.solver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Undo log for backtracking a WorkInProgress in place instead of copying it at every choice.
+// Each modification pushes a Runnable that reverts it, undo(mark) reverts everything
+// pushed since mark() in reverse order.
+class Trail {
+  private final List<Runnable> undos = new ArrayList<Runnable>();
+
+  int mark() {
+    return undos.size();
+  }
+
+  void push(Runnable undo) {
+    undos.add(undo);
+  }
+
+  void undo(int mark) {
+    for (int i = undos.size() - 1; i >= mark; i--) {
+      undos.remove(i).run();
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package se.pp.forsberg.polytope.solver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+// Search states that have been searched completely, by digest (see Certificate.ofPartial()).
+// Adding facets in different orders reaches the same partial polytope, and below it the same polytopes are found,
+// so a state that is in the table need not be searched again.
+// Bounded by a memory budget, the least recently used states are forgotten first and searched again if reached.
+// Thread safe.
+class TranspositionTable {
+  // Estimated heap per state, the UUID and the map entry with its links
+  private static final int entrySize = 96;
+
+  private final Map<UUID, Boolean> states;
+
+  // Budget in bytes
+  TranspositionTable(long budget) {
+    long capacity = budget / entrySize;
+    states = new LinkedHashMap<UUID, Boolean>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<UUID, Boolean> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  // Counts as a use
+  synchronized boolean contains(UUID state) {
+    return states.get(state) != null;
+  }
+
+  synchronized void add(UUID state) {
+    states.put(state, Boolean.TRUE);
+  }
+
+  synchronized int size() {
+    return states.size();
+  }
+}
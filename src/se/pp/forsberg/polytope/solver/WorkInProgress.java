@@ -27,7 +27,7 @@ class WorkInProgress extends Polytope {
     double angularSum = 0;
 
     private FacetChain(Polytope corner) {
-      if (!WorkInProgress.this.stream().anyMatch(polytope -> polytope == corner) || corner == null) {
+      if (corner == null || !hasFace(corner)) {
         throw new IllegalArgumentException("Polytope does not contain corner");
       }
       this.corner = corner;
@@ -47,12 +47,25 @@ class WorkInProgress extends Polytope {
       if (angularSum + angle > 2 * PI - 0.000001) {
         return false;
       }
+      double oldAngularSum = angularSum;
       ridges.add(ridge);
       facets.add(facet);
       angularSum += angle;
+      trail.push(() -> {
+        ridges.remove(ridges.size() - 1);
+        facets.remove(facets.size() - 1);
+        angularSum = oldAngularSum;
+      });
       
       return true;
     }
+    public double largestAngle() {
+      double result = 0;
+      for (Polytope facet: facets) {
+        result = Math.max(result, facet.getAngle(corner).getAngle());
+      }
+      return result;
+    }
     public Polytope firstRidge() {
       return ridges.get(0);
     }
@@ -68,8 +81,13 @@ class WorkInProgress extends Polytope {
       if (facets.size() < 3) {
         return false;
       }
+      Polytope lastRidge = lastRidge();
+      Polytope firstRidge = firstRidge();
+      if (!lastRidge.getInvariants().equals(firstRidge.getInvariants())) {
+        return false;
+      }
       // All ways to equate the two unconnected ridges
-      Optional<Equivalences> equivalences = lastRidge().waysToEquate(firstRidge())
+      Optional<Equivalences> equivalences = lastRidge.waysToEquate(firstRidge)
         // Such that the common corner is fixed
         .filter(eqv -> deepEquivalent(eqv.p1p2, corner))
         // There can be only one
@@ -82,7 +100,7 @@ class WorkInProgress extends Polytope {
       Map<Polytope, Polytope> p1p2 = equivalences.get().p1p2;
       for (Polytope p1: p1p2.keySet()) {
         Polytope p2 = p1p2.get(p1);
-        if (p1 != p2 && stream().anyMatch(component -> component.facets.contains(p1) && component.facets.contains(p2))) {
+        if (p1 != p2 && facesContaining(p1.n + 1, p1).stream().anyMatch(component -> component.facets.contains(p2))) {
           System.out.println("Skipping equate, would destroy component ");
           return false;
         }
@@ -94,7 +112,7 @@ class WorkInProgress extends Polytope {
         before = WorkInProgress.this.toString();
       }
       WorkInProgress.this.check();
-      if (WorkInProgress.this.equate(equivalences.get().p1p2) != WorkInProgress.this && DEBUG) {
+      if (WorkInProgress.this.equate(equivalences.get().p1p2, trail) != WorkInProgress.this && DEBUG) {
         throw new IllegalArgumentException("Should not happen (TM)");
       }
       this.equate(equivalences.get().p1p2);
@@ -111,8 +129,13 @@ class WorkInProgress extends Polytope {
       if (facets.size() < 3) {
         return false;
       }
+      Polytope lastRidge = lastRidge();
+      Polytope firstRidge = firstRidge();
+      if (!lastRidge.getInvariants().equals(firstRidge.getInvariants())) {
+        return false;
+      }
       // All ways to equate the two unconnected ridges 
-      Optional<Equivalences> equivalences = lastRidge().waysToEquate(firstRidge())
+      Optional<Equivalences> equivalences = lastRidge.waysToEquate(firstRidge)
         // Such that the common corner is fixed
         .filter(eqv -> deepEquivalent(eqv.p1p2, corner))
         // There can be only one
@@ -135,40 +158,6 @@ class WorkInProgress extends Polytope {
 //      result.angularSum = angularSum;
 //      return result;
 //    }
-    // Extended copy, also copy the entire enclosing WorkInProgress to make sure we can't modify 
-    // any of the old polytopes
-    public FacetChain copyWorkInProgress() {
-      Map<Polytope, Polytope> replacements = new HashMap<Polytope, Polytope>();
-      return copyWorkInProgress(replacements);
-    }
-    public FacetChain copyWorkInProgress(Map<Polytope, Polytope> replacements) {
-      if (!replacements.isEmpty()) {
-        throw new IllegalArgumentException("Attemtpt to sneak in replacements");
-      }
-      WorkInProgress wiP = WorkInProgress.this.copyWiP(replacements);
-      // This may not be a finished corner 
-      FacetChain result = wiP.finishedCorners.get(replacements.get(corner));
-      if (result != null) {
-        return result;
-      }
-      result = wiP.new FacetChain(replacements.get(corner));
-      for (Polytope facet: facets) {
-        if (replacements.containsKey(facet)) {
-          result.facets.add(replacements.get(facet));
-        } else {
-          result.facets.add(facet.copy(replacements));
-        }
-      }
-      for (Polytope ridge: ridges) {
-        if (replacements.containsKey(ridge)) {
-          result.ridges.add(replacements.get(ridge));
-        } else {
-          result.ridges.add(ridge.copy(replacements));
-        }
-      }
-      result.angularSum = angularSum;
-      return result;
-    }
 //    // Simple copy
 //    public FacetChain copy() {
 //      FacetChain result = new FacetChain(corner);
@@ -183,38 +172,59 @@ class WorkInProgress extends Polytope {
       return corner.toString().trim() + ' ' + names;
     }
     public FacetChain equate(Map<Polytope, Polytope> equivalences) {
-      corner = corner.equate(equivalences);
-      for (int i = 0; i < facets.size(); i++) {
-        Polytope replacement = facets.get(i).equate(equivalences);
-        if (replacement != facets.get(i)) {
-          facets.remove(i);
-          facets.add(i, replacement);
-        }
+      Polytope oldCorner = corner;
+      corner = corner.equate(equivalences, trail);
+      if (corner != oldCorner) {
+        trail.push(() -> corner = oldCorner);
       }
-      for (int i = 0; i < ridges.size(); i++) {
-        Polytope replacement = ridges.get(i).equate(equivalences);
-        if (replacement != ridges.get(i)) {
-          ridges.remove(i);
-          ridges.add(i, replacement);
+      equate(facets, equivalences);
+      equate(ridges, equivalences);
+      return this;
+    }
+    private void equate(List<Polytope> polytopes, Map<Polytope, Polytope> equivalences) {
+      for (int i = 0; i < polytopes.size(); i++) {
+        Polytope old = polytopes.get(i);
+        Polytope replacement = old.equate(equivalences, trail);
+        if (replacement != old) {
+          int index = i;
+          polytopes.set(index, replacement);
+          trail.push(() -> polytopes.set(index, old));
         }
       }
-      return this;
     }
 
   }
-  public Map<Polytope, FacetChain> finishedCorners = new HashMap<Polytope, FacetChain>();
+  public PersistentMap<Polytope, FacetChain> finishedCorners = PersistentMap.empty();
+  // Only catalog polytopes with lower ids are added while searching
+  int catalogLimit = Integer.MAX_VALUE;
+  // Modifications made while searching, backtracking undoes them
+  final Trail trail = new Trail();
   
   public WorkInProgress(int n) {
     super(n);
   }
   
   @Override
-  public Polytope equate(Map<Polytope, Polytope> equivalences) {
+  public void add(Polytope facet) {
+    PersistentSet<Polytope> oldFacets = facets;
+    super.add(facet);
+    if (facets != oldFacets) {
+      trail.push(() -> facets = oldFacets);
+    }
+  }
+  @Override
+  public void setAngle(Polytope ridge, Angle v) {
+    PersistentMap<Polytope, Angle> oldRidgeAngles = ridgeAngles;
+    super.setAngle(ridge, v);
+    trail.push(() -> ridgeAngles = oldRidgeAngles);
+  }
+  @Override
+  public Polytope equate(Map<Polytope, Polytope> equivalences, Trail trail) {
     Map<Polytope, FacetChain> newFinishedCorners = new HashMap<Polytope, FacetChain>();
     for (Polytope finishedCorner: finishedCorners.keySet()) {
-      newFinishedCorners.put(finishedCorner.equate(equivalences), finishedCorners.get(finishedCorner).equate(equivalences));
+      newFinishedCorners.put(finishedCorner.equate(equivalences, trail), finishedCorners.get(finishedCorner).equate(equivalences));
     }
-    return super.equate(equivalences);
+    return super.equate(equivalences, trail);
   }
   // Check that polytope maps to itself in an equivalence map, as well as all subpolytopes
   public static boolean deepEquivalent(Map<Polytope, Polytope> equivalences, Polytope p) {
@@ -239,13 +249,46 @@ class WorkInProgress extends Polytope {
 //  }
   public WorkInProgress(FacetChain facetChain) {
     super(facetChain.facets.get(0).n + 1);
-    finishedCorners.put(facetChain.corner, facetChain);
+    finishedCorners = finishedCorners.plus(facetChain.corner, facetChain);
   }
 
   public WorkInProgress(Polytope p) {
     super(p.n);
     p.copyCommon(this, new HashMap<Polytope, Polytope>());
   }
+  // Global conditions any convex polytope meets, checked as corners are finished.
+  // The faces of a finished polytope must add up to the Euler characteristic of a sphere.
+  // In three dimensions the angle deficit 2*PI minus the sum of the facet angles is positive at each vertex,
+  // and the deficits add up to 4*PI (Descartes). So finished corners with deficits adding up to 4*PI leave
+  // nothing for the others, and a finished polytope must add up to exactly 4*PI.
+  // Higher dimensions have no such bound for partial polytopes.
+  public boolean isFeasible(boolean finished) {
+    if (finished) {
+      int euler = IncidenceLattice.of(this).eulerCharacteristic();
+      if (euler != (n % 2 == 0 ? 0 : 2)) {
+        return false;
+      }
+    }
+    if (n != 3) {
+      return true;
+    }
+    Map<Polytope, Double> angularSums = new HashMap<Polytope, Double>();
+    for (Polytope facet: facets) {
+      for (Map.Entry<Polytope, Angle> angle: facet.ridgeAngles.entrySet()) {
+        if (angle.getValue() instanceof Angle.Unknown) {
+          return true;
+        }
+        if (finishedCorners.containsKey(angle.getKey())) {
+          angularSums.merge(angle.getKey(), angle.getValue().getAngle(), Double::sum);
+        }
+      }
+    }
+    double deficit = 0;
+    for (double angularSum: angularSums.values()) {
+      deficit += 2 * PI - angularSum;
+    }
+    return finished ? Math.abs(deficit - 4 * PI) < 0.000001 : deficit < 4 * PI - 0.000001;
+  }
   public Stream<Polytope> unfinishedCorners() {
     return facets.stream().flatMap(
         facet -> facet.facets.stream().flatMap(
@@ -331,7 +374,7 @@ class WorkInProgress extends Polytope {
   public CornerAngles getAngles(Polytope corner) {
     CornerAngles result = new CornerAngles(corner);
     Map<Polytope, Set<Polytope>> ridgeToFacetMap = getRidgeToFacetMap();
-    Set<Polytope> neighboringRidges = ridgeToFacetMap.keySet().stream().filter(ridge -> ridge.facets.contains(corner)).collect(Collectors.toSet());
+    Set<Polytope> neighboringRidges = getCornerToRidgeMap().getOrDefault(corner, Collections.emptySet());
     Set<Polytope> neighboringFacets = new HashSet<Polytope>();
     neighboringRidges.stream().forEach(ridge -> {
       Set<Polytope> facets = ridgeToFacetMap.get(ridge);
@@ -352,47 +395,36 @@ class WorkInProgress extends Polytope {
     if (facets.size() < 3) {
       throw new IllegalArgumentException("Invalid polytope");
     }
-    Map<Polytope, Set<Polytope>> ridgeToFacetMap = getRidgeToFacetMap();
-    for (Polytope ridge: ridgeToFacetMap.keySet()) {
-      if (ridgeToFacetMap.get(ridge).size() != 2) {
-        throw new IllegalArgumentException("Unclosed ridge " + ridge);
-      }
+    IncidenceLattice lattice = IncidenceLattice.of(this);
+    int unclosedRidge = lattice.unclosedRidge();
+    if (unclosedRidge >= 0) {
+      throw new IllegalArgumentException("Unclosed ridge " + lattice.face(n - 2, unclosedRidge));
     }
-    Set<Polytope> reachableFacets = new HashSet<Polytope>();
-    collectConnectedFacets(facets.iterator().next(), reachableFacets);
-    if (!reachableFacets.equals(facets)) {
+    if (!lattice.isConnected()) {
       throw new IllegalArgumentException("Disconnected polytope");
     }
-    Set<Polytope> ridges = stream().filter(ridge -> ridge.n == n-2).collect(Collectors.toSet());
-    Set<Polytope> ridgesWithAngles = new HashSet<Polytope>(ridgeAngles.keySet());
-    if (!ridges.equals(ridgesWithAngles)) {
+    if (lattice.angleRidges(n, 0).length != lattice.count(n - 2)) {
       throw new IllegalArgumentException("Not all angles determined");
     }
   }
 
-  /**
-   * Create a set of all facets reachable from the specified facet by moving to neighbors
-   * along the ridges. 
-   * @param facet Starting face
-   * @param ridgeToFacetMap Map of ridge to neighboring facets
-   * @param reachableFacets Return value, all facets (recursively) reachable from facet.
-   */
-  private void collectConnectedFacets(Polytope facet, Set<Polytope> reachableFacets) {
-    if (reachableFacets.contains(facet)) {
-      return;
-    }
-    reachableFacets.add(facet);
-    for (Polytope ridge: facet.facets) {
-      for (Polytope neighboringFacet: getRidgeToFacetMap().get(ridge)) {
-        collectConnectedFacets(neighboringFacet, reachableFacets);
-      }
-    }
+  // Looked up at every step of the search
+  @Override
+  protected boolean keepRidgeIndex() {
+    return true;
   }
+
   public boolean isEmpty() {
     return facets.isEmpty();
   }
+  // A fork, it costs a copy of every face above the vertexes. Faces are told apart by identity and equate()
+  // modifies them in place, so two branches searched at the same time can't share them.
+  // Vertexes are never modified once created, so the copy shares them with the original
+  // (and with them the facet collections of the edges)
   public WorkInProgress copyWiP() {
-    return copyWiP(Collections.emptyMap());
+    Map<Polytope, Polytope> replacementMap = new HashMap<Polytope, Polytope>();
+    faces(0).forEach(vertex -> replacementMap.put(vertex, vertex));
+    return copyWiP(replacementMap);
   }
   public WorkInProgress copyWiP(Map<Polytope, Polytope> replacementMap) {
     if (replacementMap.containsKey(this)) {
@@ -400,6 +432,7 @@ class WorkInProgress extends Polytope {
     }
     WorkInProgress p = new WorkInProgress(n);
     copyCommon(p, replacementMap);
+    p.catalogLimit = catalogLimit;
     for (Polytope corner: finishedCorners.keySet()) {
       Polytope finishedCorner = replacementMap.get(corner);
       FacetChain chain = finishedCorners.get(corner);
@@ -411,7 +444,7 @@ class WorkInProgress extends Polytope {
         chainCopy.ridges.add(ridge.copy(replacementMap));
       }
       chainCopy.angularSum = chain.angularSum;
-      p.finishedCorners.put(chainCopy.corner, chainCopy);
+      p.finishedCorners = p.finishedCorners.plus(chainCopy.corner, chainCopy);
 //      p.finishedCorners.put(replacementMap.get(corner), finishedCorners.get(corner).copy(replacementMap));
     }
     return p;
@@ -428,7 +461,7 @@ class WorkInProgress extends Polytope {
         .filter(ridge2 ->  ridge2 != ridge && ridge2.facets.equals(ridge.facets))
         .forEach(ridge2 -> equivalences.put(ridge2, ridge));
     }
-    equate(equivalences);
+    equate(equivalences, trail);
   }
   public boolean solveAngles() {
     // Simultaneously solve all dihedral angles...
@@ -492,7 +525,7 @@ class WorkInProgress extends Polytope {
     // Then, a stab at solving remaining corners using above angles
     finishedCorners.values().stream().filter(chain -> chain.facets.size() == 4).forEach(chain -> solve4(chain));
     if (DEBUG) {
-      Set<Polytope> ridges = stream().filter(ridge -> ridge.n == n-2).collect(Collectors.toSet());
+      Set<Polytope> ridges = new HashSet<Polytope>(faces(n-2));
       Set<Polytope> ridgesWithAngles = new HashSet<Polytope>(ridgeAngles.keySet());
       if (!ridges.equals(ridgesWithAngles)) {
         System.out.println("Don't know how to solve the angles for this one, fix it, lazy programmer!");
@@ -555,10 +588,12 @@ class WorkInProgress extends Polytope {
     return new FacetChain(corner);
   }
   public void addFinishedCorner(FacetChain chain) {
-    if (stream().noneMatch(p -> p == chain.corner)) {
+    if (!hasFace(chain.corner)) {
       throw new IllegalArgumentException("Polytope does not contain corner");
     }
-    finishedCorners.put(chain.corner, chain);
+    PersistentMap<Polytope, FacetChain> oldFinishedCorners = finishedCorners;
+    finishedCorners = finishedCorners.plus(chain.corner, chain);
+    trail.push(() -> finishedCorners = oldFinishedCorners);
   }
 
 }
@@ -29,6 +29,8 @@ public class TestFold {
     angles = fold3(angles[0], angles[0], angles[0]);
     System.out.println("\n6-simplex, " + a(acos(1.0/6)));
     angles = fold3(angles[0], angles[0], angles[0]);
+    System.out.println("\n7-simplex, " + a(acos(1.0/7)));
+    angles = fold3(angles[0], angles[0], angles[0]);
   }
 
 //  private static void fold3(double v1, double v2, double v3) {
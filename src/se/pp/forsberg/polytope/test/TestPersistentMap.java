@@ -0,0 +1,174 @@
+package se.pp.forsberg.polytope.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import se.pp.forsberg.polytope.solver.PersistentMap;
+import se.pp.forsberg.polytope.solver.PersistentSet;
+
+// Edge cases of the persistent hash trie, checked against HashMap.
+// Keys choose their own hash codes, so collisions and deep paths can be forced.
+public class TestPersistentMap {
+
+  public static void main(String[] arguments) {
+    testEqualHashCodes();
+    testMinusUntilEmpty();
+    testDeepPaths();
+    testRandom();
+    testSet();
+    System.out.println("PersistentMap ok");
+  }
+
+  private static final class Key {
+    final int id;
+    final int hash;
+    Key(int id, int hash) {
+      this.id = id;
+      this.hash = hash;
+    }
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Key && ((Key) obj).id == id;
+    }
+    @Override
+    public String toString() {
+      return id + "#" + Integer.toHexString(hash);
+    }
+  }
+
+  // All in one collision node, below a full path of the trie
+  private static void testEqualHashCodes() {
+    PersistentMap<Key, Integer> map = PersistentMap.empty();
+    Map<Key, Integer> expected = new HashMap<Key, Integer>();
+    for (int i = 0; i < 50; i++) {
+      Key key = new Key(i, 0x12345678);
+      map = map.plus(key, i);
+      expected.put(key, i);
+      check(map, expected, "plus colliding " + i);
+    }
+    // Replacing a value in a collision node
+    map = map.plus(new Key(7, 0x12345678), 700);
+    expected.put(new Key(7, 0x12345678), 700);
+    check(map, expected, "replace colliding");
+    for (int i = 0; i < 50; i += 2) {
+      map = map.minus(new Key(i, 0x12345678));
+      expected.remove(new Key(i, 0x12345678));
+      check(map, expected, "minus colliding " + i);
+    }
+    // Not there, same hash and different hash
+    assertTrue(map.minus(new Key(1000, 0x12345678)) == map, "minus of a missing colliding key changes the map");
+    assertTrue(map.minus(new Key(1000, 0x12345679)) == map, "minus of a missing key changes the map");
+    assertTrue(!map.containsKey(new Key(0, 0x12345678)), "removed colliding key still there");
+  }
+
+  private static void testMinusUntilEmpty() {
+    PersistentMap<Key, Integer> map = PersistentMap.empty();
+    List<Key> keys = new ArrayList<Key>();
+    for (int i = 0; i < 200; i++) {
+      Key key = new Key(i, i % 13 == 0 ? 42 : i * 0x9e3779b9);
+      keys.add(key);
+      map = map.plus(key, i);
+    }
+    Map<Key, Integer> expected = new HashMap<Key, Integer>(map);
+    for (Key key: keys) {
+      map = map.minus(key);
+      expected.remove(key);
+      check(map, expected, "minus " + key);
+    }
+    assertTrue(map.isEmpty() && map.size() == 0, "not empty after removing every key");
+    assertTrue(!map.entrySet().iterator().hasNext(), "empty map iterates");
+    assertTrue(map.minus(keys.get(0)) == map, "minus on an empty map changes it");
+  }
+
+  // Hashes that only differ in the highest bits go all the way down the trie
+  private static void testDeepPaths() {
+    PersistentMap<Key, Integer> map = PersistentMap.empty();
+    Map<Key, Integer> expected = new HashMap<Key, Integer>();
+    int id = 0;
+    for (int high = 0; high < 8; high++) {
+      for (int copies = 0; copies < 3; copies++) {
+        Key key = new Key(id, (high << 29) | 0x1f);
+        map = map.plus(key, id);
+        expected.put(key, id++);
+        check(map, expected, "plus deep " + key);
+      }
+    }
+    List<Key> keys = new ArrayList<Key>(expected.keySet());
+    for (int i = 0; i < keys.size(); i += 3) {
+      map = map.minus(keys.get(i));
+      expected.remove(keys.get(i));
+      check(map, expected, "minus deep " + keys.get(i));
+    }
+  }
+
+  // Many versions, each checked against its own HashMap, older versions must not change
+  private static void testRandom() {
+    Random random = new Random(4711);
+    PersistentMap<Key, Integer> map = PersistentMap.empty();
+    Map<Key, Integer> expected = new HashMap<Key, Integer>();
+    List<PersistentMap<Key, Integer>> versions = new ArrayList<PersistentMap<Key, Integer>>();
+    List<Map<Key, Integer>> expectedVersions = new ArrayList<Map<Key, Integer>>();
+    for (int step = 0; step < 20000; step++) {
+      // Few distinct hashes, plenty of collisions and shared prefixes
+      int id = random.nextInt(500);
+      Key key = new Key(id, (id % 37) * 0x01010101);
+      if (random.nextInt(3) == 0) {
+        map = map.minus(key);
+        expected.remove(key);
+      } else {
+        map = map.plus(key, step);
+        expected.put(key, step);
+      }
+      if (step % 1000 == 0) {
+        check(map, expected, "random step " + step);
+        versions.add(map);
+        expectedVersions.add(new HashMap<Key, Integer>(expected));
+      }
+    }
+    check(map, expected, "random end");
+    for (int i = 0; i < versions.size(); i++) {
+      check(versions.get(i), expectedVersions.get(i), "old version " + i);
+    }
+  }
+
+  private static void testSet() {
+    PersistentSet<Key> set = PersistentSet.empty();
+    for (int i = 0; i < 100; i++) {
+      set = set.plus(new Key(i, i % 3));
+    }
+    assertTrue(set.plus(new Key(5, 2)) == set, "plus of a present element changes the set");
+    for (int i = 0; i < 100; i++) {
+      set = set.minus(new Key(i, i % 3));
+    }
+    assertTrue(set.isEmpty(), "set not empty after removing every element");
+  }
+
+  // Size, lookups and iteration, which must produce every entry exactly once
+  private static void check(PersistentMap<Key, Integer> map, Map<Key, Integer> expected, String what) {
+    assertTrue(map.size() == expected.size(), what + ": size " + map.size() + " != " + expected.size());
+    for (Map.Entry<Key, Integer> entry: expected.entrySet()) {
+      assertTrue(map.containsKey(entry.getKey()), what + ": missing " + entry.getKey());
+      assertTrue(entry.getValue().equals(map.get(entry.getKey())), what + ": wrong value for " + entry.getKey());
+    }
+    Map<Key, Integer> iterated = new HashMap<Key, Integer>();
+    int count = 0;
+    for (Map.Entry<Key, Integer> entry: map.entrySet()) {
+      iterated.put(entry.getKey(), entry.getValue());
+      count++;
+    }
+    assertTrue(count == expected.size() && iterated.equals(expected), what + ": iterated " + iterated + " != " + expected);
+  }
+
+  private static void assertTrue(boolean condition, String message) {
+    if (!condition) {
+      throw new IllegalStateException(message);
+    }
+  }
+}
@@ -0,0 +1,276 @@
+package se.pp.forsberg.polytope.solver;
+
+import static java.lang.Math.acos;
+import static java.lang.Math.cos;
+import static java.lang.Math.sin;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import se.pp.forsberg.polytope.AffineTransform;
+import se.pp.forsberg.polytope.Matrix;
+import se.pp.forsberg.polytope.solver.Angle.RationalPi;
+import se.pp.forsberg.polytope.solver.Angle.TrinaryAngle;
+
+// Timings of the hot paths of the solver and of the geometry, to compare one build with another.
+// In the solver package, but kept out of src, so it can reach WorkInProgress without widening the solver API.
+// Arguments are prefixes of the benchmarks to run, all of them if there are none.
+// Every benchmark is warmed up and then run for a number of rounds of roughly the same length,
+// the time per operation reported is the median over the rounds, with the fastest round next to it.
+//   -Dbenchmark.warmup=5 -Dbenchmark.rounds=10 -Dbenchmark.round=200 (milliseconds)
+public class Benchmark {
+  private static final int warmup = Integer.getInteger("benchmark.warmup", 5);
+  private static final int rounds = Integer.getInteger("benchmark.rounds", 10);
+  private static final long roundNanos = Long.getLong("benchmark.round", 200) * 1000000;
+  // Results end up here so that nothing is optimized away
+  private static volatile long sink;
+
+  public static void main(String[] arguments) {
+    Map<String, LongSupplier> benchmarks = new LinkedHashMap<String, LongSupplier>();
+    Map<String, Polytope> fixtures = new LinkedHashMap<String, Polytope>();
+    fixtures.put("triangle", polygon(3));
+    fixtures.put("square", cube(2));
+    fixtures.put("cube", cube(3));
+    fixtures.put("4-cube", cube(4));
+    for (Map.Entry<String, Polytope> fixture: fixtures.entrySet()) {
+      // As in the solver, catalog polytopes are frozen and compared to ones still being worked on
+      Polytope p = fixture.getValue();
+      p.freeze();
+      Polytope other = p.copy();
+      String name = fixture.getKey();
+      benchmarks.put("waysToEquate/" + name, () -> p.waysToEquate(other).count());
+      benchmarks.put("equivalent/" + name, () -> p.equivalent(other) ? 1 : 0);
+      benchmarks.put("copy/" + name, () -> p.copy().getDimensions());
+      benchmarks.put("ridgeToFacetMap/" + name, () -> other.getRidgeToFacetMap().size());
+      addWorkInProgress(benchmarks, name, p);
+    }
+    benchmarks.put("angle/fold3", Benchmark::fold3);
+    // Both modify their matrix in place, and alternate between a matrix and its inverse so the values stay put
+    Matrix inverted = matrix(5);
+    benchmarks.put("matrix/invert", () -> {
+      inverted.invert();
+      return Double.doubleToLongBits(inverted.get(1, 1));
+    });
+    Matrix concatenated = matrix(5);
+    Matrix[] steps = { matrix(5), matrix(5).inverse() };
+    int[] concatenations = { 0 };
+    benchmarks.put("matrix/concatenate", () -> {
+      concatenated.concatenate(steps[concatenations[0]++ & 1]);
+      return Double.doubleToLongBits(concatenated.get(1, 1));
+    });
+    AffineTransform transform = AffineTransform.getRotateInstance(AffineTransform.X, AffineTransform.Y, 0.1)
+        .concatenate(AffineTransform.getRotateInstance(AffineTransform.Z, AffineTransform.W, 0.2))
+        .concatenate(AffineTransform.getTranslateInstance(1, 2, 3, 4));
+    double[] point = { 0.5, -0.5, 0.25, 1 };
+    benchmarks.put("affine/transform", () -> Double.doubleToLongBits(transform.transform(point)[0]));
+    se.pp.forsberg.polytope.Polytope cube = geometricCube(3);
+    se.pp.forsberg.polytope.Polytope tesseract = geometricCube(4);
+    benchmarks.put("coalesce/cube", () -> {
+      cube.coalesce();
+      return cube.hashCode();
+    });
+    benchmarks.put("coalesce/4-cube", () -> {
+      tesseract.coalesce();
+      return tesseract.hashCode();
+    });
+
+    PrintStream out = System.out;
+    // Some of the code measured talks a lot
+    System.setOut(new PrintStream(new OutputStream() {
+      @Override
+      public void write(int b) {
+      }
+    }));
+    try {
+      for (Map.Entry<String, LongSupplier> benchmark: benchmarks.entrySet()) {
+        if (selected(benchmark.getKey(), arguments)) {
+          double[] result = run(benchmark.getValue());
+          out.println(String.format("%-28s %14.1f ns/op %14.1f ns/op fastest", benchmark.getKey(), result[0], result[1]));
+        }
+      }
+    } finally {
+      System.setOut(out);
+    }
+  }
+
+  // The search steps on a partial polytope with the facets of p
+  private static void addWorkInProgress(Map<String, LongSupplier> benchmarks, String name, Polytope p) {
+    WorkInProgress wip = new WorkInProgress(p);
+    benchmarks.put("copyWiP/" + name, () -> wip.copyWiP().facets.size());
+    if (p.n < 3) {
+      return;
+    }
+    // The facets copied one by one, sharing only their vertexes, as when a finished corner is added.
+    // Each ridge is then there twice, once in each facet around it.
+    WorkInProgress loose = new WorkInProgress(p.n);
+    for (Polytope facet: p.facets) {
+      Map<Polytope, Polytope> replacementMap = new HashMap<Polytope, Polytope>();
+      p.faces(0).forEach(vertex -> replacementMap.put(vertex, vertex));
+      loose.add(facet.copy(replacementMap));
+    }
+    // Undone as when backtracking, so every operation coalesces the same ridges
+    benchmarks.put("coalesceRidges/" + name, () -> {
+      int mark = loose.trail.mark();
+      loose.coalesceRidges();
+      int modifications = loose.trail.mark() - mark;
+      loose.trail.undo(mark);
+      return modifications;
+    });
+  }
+
+  private static boolean selected(String name, String[] arguments) {
+    if (arguments.length == 0) {
+      return true;
+    }
+    for (String argument: arguments) {
+      if (name.startsWith(argument)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Median and fastest time per operation in nanoseconds
+  private static double[] run(LongSupplier operation) {
+    for (int i = 0; i < warmup; i++) {
+      round(operation);
+    }
+    double[] times = new double[rounds];
+    for (int i = 0; i < rounds; i++) {
+      times[i] = round(operation);
+    }
+    Arrays.sort(times);
+    return new double[] { times[rounds / 2], times[0] };
+  }
+  private static double round(LongSupplier operation) {
+    long result = 0;
+    long count = 0;
+    long start = System.nanoTime();
+    long elapsed;
+    do {
+      result += operation.getAsLong();
+      count++;
+      elapsed = System.nanoTime() - start;
+    } while (elapsed < roundNanos);
+    sink += result;
+    return (double) elapsed / count;
+  }
+
+  // Dihedral angles of the simplexes up to 7 dimensions, each folded from the one below, evaluated from scratch
+  private static long fold3() {
+    TrinaryAngle.Value value = (a1, a2, a3) -> acos((cos(a3) - cos(a1)*cos(a2))/(sin(a1)*sin(a2)));
+    String description = "acos((cos(%3$s) - cos(%1$s)*cos(%2$s))/(sin(%1$s)*sin(%2$s)))";
+    Angle angle = new RationalPi(1, 3);
+    for (int n = 3; n <= 7; n++) {
+      angle = new TrinaryAngle(angle, angle, angle, value, description);
+    }
+    return Double.doubleToLongBits(angle.getAngle());
+  }
+
+  private static Polytope polygon(int n) {
+    Vertex first = new Vertex();
+    Vertex v = first;
+    Polytope result = new Polytope(2);
+    for (int i = 0; i < n; i++) {
+      Vertex next = i == n - 1 ? first : new Vertex();
+      result.add(new Edge(v, next));
+      v = next;
+    }
+    Angle angle = new RationalPi(n - 2, n);
+    for (Polytope vertex: result.faces(0)) {
+      result.setAngle(vertex, angle);
+    }
+    return result;
+  }
+
+  // The faces of an n-cube are named by strings of 0, 1 and *, with a * for every direction they extend in
+  private static Polytope cube(int n) {
+    char[] name = new char[n];
+    Arrays.fill(name, '*');
+    return cubeFace(new String(name), new HashMap<String, Polytope>());
+  }
+  private static Polytope cubeFace(String name, Map<String, Polytope> faces) {
+    Polytope result = faces.get(name);
+    if (result != null) {
+      return result;
+    }
+    List<Polytope> facets = new ArrayList<Polytope>();
+    for (String facet: cubeFacets(name)) {
+      facets.add(cubeFace(facet, faces));
+    }
+    int n = facets.size() / 2;
+    if (n == 0) {
+      result = new Vertex();
+    } else if (n == 1) {
+      result = new Edge((Vertex) facets.get(0), (Vertex) facets.get(1));
+    } else {
+      result = new Polytope(n);
+      for (Polytope facet: facets) {
+        result.add(facet);
+      }
+      Angle right = new RationalPi(1, 2);
+      for (Polytope ridge: result.faces(n - 2)) {
+        result.setAngle(ridge, right);
+      }
+    }
+    faces.put(name, result);
+    return result;
+  }
+  private static List<String> cubeFacets(String name) {
+    List<String> result = new ArrayList<String>();
+    for (int i = 0; i < name.length(); i++) {
+      if (name.charAt(i) == '*') {
+        result.add(name.substring(0, i) + '0' + name.substring(i + 1));
+        result.add(name.substring(0, i) + '1' + name.substring(i + 1));
+      }
+    }
+    return result;
+  }
+
+  // The same n-cube with coordinates, for the geometry
+  private static se.pp.forsberg.polytope.Polytope geometricCube(int n) {
+    char[] name = new char[n];
+    Arrays.fill(name, '*');
+    return geometricCubeFace(new String(name), new HashMap<String, se.pp.forsberg.polytope.Polytope>());
+  }
+  private static se.pp.forsberg.polytope.Polytope geometricCubeFace(String name, Map<String, se.pp.forsberg.polytope.Polytope> faces) {
+    se.pp.forsberg.polytope.Polytope result = faces.get(name);
+    if (result != null) {
+      return result;
+    }
+    List<String> facetNames = cubeFacets(name);
+    if (facetNames.isEmpty()) {
+      double[] coordinates = new double[name.length()];
+      for (int i = 0; i < coordinates.length; i++) {
+        coordinates[i] = name.charAt(i) - '0';
+      }
+      result = se.pp.forsberg.polytope.Polytope.get(coordinates);
+    } else {
+      se.pp.forsberg.polytope.Polytope[] facets = new se.pp.forsberg.polytope.Polytope[facetNames.size()];
+      for (int i = 0; i < facets.length; i++) {
+        facets[i] = geometricCubeFace(facetNames.get(i), faces);
+      }
+      result = se.pp.forsberg.polytope.Polytope.get(facets);
+    }
+    faces.put(name, result);
+    return result;
+  }
+
+  // Diagonally dominant, so it and its inverse are well conditioned
+  private static Matrix matrix(int size) {
+    Matrix result = new Matrix(size);
+    for (int y = 0; y < size; y++) {
+      for (int x = 0; x < size; x++) {
+        result.set(y, x, y == x ? 1 : 0.1 / (1 + x + y));
+      }
+    }
+    return result;
+  }
+}
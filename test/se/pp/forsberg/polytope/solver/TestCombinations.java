@@ -0,0 +1,146 @@
+package se.pp.forsberg.polytope.solver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Spliterator;
+
+// Combinations compared with all multisets enumerated one by one, for small sizes.
+// In the solver package, in the test source folder, as Combinations is package private.
+public class TestCombinations {
+
+  public static void main(String[] arguments) {
+    Random random = new Random(4711);
+    for (int size = 0; size <= 7; size++) {
+      for (int k = 1; k <= 4; k++) {
+        for (int from = 0; from <= size; from++) {
+          List<int[]> expected = bruteForce(size, k, from);
+          testRanks(size, k, from, expected);
+          testStartAt(size, k, from, expected, random);
+          testParts(size, k, from, expected);
+          testSplit(size, k, from, expected);
+        }
+      }
+    }
+    System.out.println("Combinations ok");
+  }
+
+  // Every combination, started at, is the first one given and has the rest after it
+  private static void testRanks(int size, int k, int from, List<int[]> expected) {
+    List<int[]> all = bruteForce(size, k, 0);
+    assertTrue(Combinations.count(size, k) == all.size(), "count(" + size + ", " + k + ")");
+    assertEqual(list(new Combinations(size, k, from)), expected, size, k, from, "all");
+    for (int r = 0; r < all.size(); r++) {
+      int[] c = all.get(r);
+      Combinations combinations = new Combinations(size, k, 0).startAt(c);
+      assertTrue(combinations.estimateSize() == all.size() - r, "rank of " + Arrays.toString(c));
+      assertEqual(list(combinations), all.subList(r, all.size()), size, k, 0, "startAt " + Arrays.toString(c));
+    }
+  }
+
+  // Nondecreasing arrays that need not be combinations, elements up to and including size
+  private static void testStartAt(int size, int k, int from, List<int[]> expected, Random random) {
+    for (int i = 0; i < 20; i++) {
+      int[] c = new int[k];
+      for (int j = 0; j < k; j++) {
+        c[j] = random.nextInt(size + 1);
+      }
+      if (i % 4 == 0 && k > 1) {
+        // Past everything starting with the first element
+        c[k - 1] = size;
+      }
+      Arrays.sort(c);
+      List<int[]> rest = new ArrayList<int[]>();
+      for (int[] e: expected) {
+        if (compare(e, c) >= 0) {
+          rest.add(e);
+        }
+      }
+      assertEqual(list(new Combinations(size, k, from).startAt(c)), rest, size, k, from, "startAt " + Arrays.toString(c));
+    }
+  }
+
+  // Parts, one after the other, give every combination exactly once
+  private static void testParts(int size, int k, int from, List<int[]> expected) {
+    for (int m = 1; m <= 7; m++) {
+      List<int[]> parts = new ArrayList<int[]>();
+      for (int i = 0; i < m; i++) {
+        parts.addAll(list(new Combinations(size, k, from).part(i, m)));
+      }
+      assertEqual(parts, expected, size, k, from, "parts of " + m);
+    }
+  }
+
+  private static void testSplit(int size, int k, int from, List<int[]> expected) {
+    List<int[]> split = new ArrayList<int[]>();
+    split(new Combinations(size, k, from), split);
+    assertEqual(split, expected, size, k, from, "split");
+  }
+  private static void split(Spliterator<int[]> combinations, List<int[]> result) {
+    Spliterator<int[]> prefix = combinations.trySplit();
+    if (prefix == null) {
+      combinations.forEachRemaining(result::add);
+      return;
+    }
+    split(prefix, result);
+    split(combinations, result);
+  }
+
+  // Nondecreasing arrays of k elements below size, ending with from or later, in lexicographic order
+  private static List<int[]> bruteForce(int size, int k, int from) {
+    List<int[]> result = new ArrayList<int[]>();
+    bruteForce(new int[k], 0, 0, size, from, result);
+    return result;
+  }
+  private static void bruteForce(int[] c, int i, int low, int size, int from, List<int[]> result) {
+    if (i == c.length) {
+      if (c[c.length - 1] >= from) {
+        result.add(c.clone());
+      }
+      return;
+    }
+    for (int v = low; v < size; v++) {
+      c[i] = v;
+      bruteForce(c, i + 1, v, size, from, result);
+    }
+  }
+
+  private static List<int[]> list(Spliterator<int[]> combinations) {
+    List<int[]> result = new ArrayList<int[]>();
+    combinations.forEachRemaining(result::add);
+    return result;
+  }
+
+  private static int compare(int[] c1, int[] c2) {
+    for (int i = 0; i < c1.length; i++) {
+      if (c1[i] != c2[i]) {
+        return Integer.compare(c1[i], c2[i]);
+      }
+    }
+    return 0;
+  }
+
+  private static void assertEqual(List<int[]> actual, List<int[]> expected, int size, int k, int from, String what) {
+    boolean equal = actual.size() == expected.size();
+    for (int i = 0; equal && i < actual.size(); i++) {
+      equal = Arrays.equals(actual.get(i), expected.get(i));
+    }
+    if (!equal) {
+      throw new IllegalStateException("size " + size + " k " + k + " from " + from + ", " + what + ": "
+          + toString(actual) + " != " + toString(expected));
+    }
+  }
+  private static void assertTrue(boolean condition, String message) {
+    if (!condition) {
+      throw new IllegalStateException(message);
+    }
+  }
+  private static String toString(List<int[]> combinations) {
+    StringBuilder result = new StringBuilder();
+    for (int[] c: combinations) {
+      result.append(Arrays.toString(c));
+    }
+    return result.toString();
+  }
+}